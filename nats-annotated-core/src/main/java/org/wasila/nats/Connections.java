@@ -0,0 +1,37 @@
+/**
+ * (C) Copyright 2017 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats;
+
+import org.wasila.nats.internal.ConnectionCache;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public final class Connections {
+
+    private Connections() {
+    }
+
+    // opens `connectionsPerUrl` pooled connections to every url in parallel; publishers and routers built later from
+    // those urls with the same connections(n) setting reuse them
+    public static void warmUp(Collection<String> urls, int connectionsPerUrl, long timeout, TimeUnit unit)
+            throws IOException, TimeoutException, InterruptedException {
+        ConnectionCache.warmUp(urls, connectionsPerUrl, timeout, unit);
+    }
+
+}
@@ -23,4 +23,8 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 @Target({ElementType.METHOD})
 public @interface Subscribe {
+    DispatchMode dispatch() default DispatchMode.DEFAULT;
+    int queueCapacity() default -1;
+    OverflowPolicy overflow() default OverflowPolicy.DEFAULT;
+    String deadLetterSubject() default "";
 }
@@ -0,0 +1,48 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.codec;
+
+import java.lang.reflect.Type;
+
+public interface Codec {
+
+    String name();
+
+    Encoder encoder(Type type);
+
+    Decoder decoder(Type type);
+
+    // single byte written in front of tagged payloads, 0 when the codec cannot be tagged
+    default byte tag() {
+        return Codecs.tagFor(name());
+    }
+
+    default Encoder taggedEncoder(Type type) {
+        final byte tag = tag();
+        if (tag == 0) {
+            throw new IllegalStateException("Codec " + name() + " has no payload tag");
+        }
+        final Encoder encoder = encoder(type);
+        return value -> {
+            byte[] data = encoder.encode(value);
+            byte[] tagged = new byte[data.length + 1];
+            tagged[0] = tag;
+            System.arraycopy(data, 0, tagged, 1, data.length);
+            return tagged;
+        };
+    }
+
+}
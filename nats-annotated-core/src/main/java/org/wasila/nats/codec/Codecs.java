@@ -0,0 +1,107 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.codec;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public final class Codecs {
+
+    public static final String JSON = "json";
+    public static final String SMILE = "smile";
+    public static final String CBOR = "cbor";
+    public static final String MSGPACK = "msgpack";
+
+    private static final Map<String, String> JACKSON_FACTORIES = new HashMap<>();
+
+    static {
+        JACKSON_FACTORIES.put(SMILE, "com.fasterxml.jackson.dataformat.smile.SmileFactory");
+        JACKSON_FACTORIES.put(CBOR, "com.fasterxml.jackson.dataformat.cbor.CBORFactory");
+        JACKSON_FACTORIES.put(MSGPACK, "org.msgpack.jackson.dataformat.MessagePackFactory");
+    }
+
+    // tags use control characters that can never start a JSON document, so untagged JSON stays unambiguous
+    private static final String[] TAGS = {null, JSON, SMILE, CBOR, MSGPACK, "protobuf"};
+
+    private static final ConcurrentMap<String, Codec> CODECS = new ConcurrentHashMap<>();
+
+    private Codecs() {
+    }
+
+    public static Codec json() {
+        return forName(JSON);
+    }
+
+    // built-in jackson formats are enabled by adding the matching dataformat module to the classpath,
+    // other codecs are discovered with ServiceLoader
+    public static Codec forName(String name) {
+        Codec codec = CODECS.get(name);
+        if (codec == null) {
+            codec = load(name);
+            if (codec == null) {
+                return null;
+            }
+            Codec previous = CODECS.putIfAbsent(name, codec);
+            codec = previous != null ? previous : codec;
+        }
+        return codec;
+    }
+
+    public static byte tagFor(String name) {
+        for (int i = 1; i < TAGS.length; i++) {
+            if (TAGS[i].equals(name)) {
+                return (byte) i;
+            }
+        }
+        return 0;
+    }
+
+    public static String nameForTag(byte tag) {
+        return tag > 0 && tag < TAGS.length ? TAGS[tag] : null;
+    }
+
+    public static boolean isTag(byte value) {
+        return value > 0 && value < 0x20 && value != '\t' && value != '\n' && value != '\r';
+    }
+
+    private static Codec load(String name) {
+        if (JSON.equals(name)) {
+            return new JacksonCodec(JSON, new ObjectMapper());
+        }
+        String factoryClass = JACKSON_FACTORIES.get(name);
+        if (factoryClass != null) {
+            try {
+                JsonFactory factory = (JsonFactory) Class.forName(factoryClass).newInstance();
+                return new JacksonCodec(name, new ObjectMapper(factory));
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+        for (Codec codec : ServiceLoader.load(Codec.class)) {
+            if (codec.name().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+}
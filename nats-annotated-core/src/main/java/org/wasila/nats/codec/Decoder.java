@@ -0,0 +1,29 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.codec;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface Decoder {
+
+    Object decode(byte[] data, int offset, int length) throws IOException;
+
+    default Object decode(byte[] data) throws IOException {
+        return decode(data, 0, data.length);
+    }
+
+}
@@ -0,0 +1,73 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.wasila.nats.internal.ObjectWriters;
+
+import java.lang.reflect.Type;
+import java.util.Locale;
+
+public class JacksonCodec implements Codec {
+
+    private final String name;
+    private final ObjectMapper mapper;
+
+    public JacksonCodec(ObjectMapper mapper) {
+        this(mapper.getFactory().getFormatName().toLowerCase(Locale.ROOT), mapper);
+    }
+
+    public JacksonCodec(String name, ObjectMapper mapper) {
+        this.name = name;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public Encoder encoder(Type type) {
+        final ObjectWriter writer = type instanceof Class
+                ? ObjectWriters.forType(mapper, (Class<?>) type) : mapper.writer();
+        return value -> ObjectWriters.writeValueAsBytes(writer, value);
+    }
+
+    @Override
+    public Encoder taggedEncoder(Type type) {
+        final byte tag = tag();
+        if (tag == 0) {
+            throw new IllegalStateException("Codec " + name + " has no payload tag");
+        }
+        final ObjectWriter writer = type instanceof Class
+                ? ObjectWriters.forType(mapper, (Class<?>) type) : mapper.writer();
+        return value -> ObjectWriters.writeValueAsBytes(writer, value, tag);
+    }
+
+    @Override
+    public Decoder decoder(Type type) {
+        final ObjectReader reader = mapper.readerFor(mapper.constructType(type));
+        return reader::readValue;
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return mapper;
+    }
+
+}
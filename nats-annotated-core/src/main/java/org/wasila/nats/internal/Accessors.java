@@ -0,0 +1,47 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+public final class Accessors {
+
+    private static final MethodType ACCESSOR_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private Accessors() {
+    }
+
+    // a getter, boolean getter or public field of the property, typed (Object)Object; null when there is none
+    public static MethodHandle find(Class<?> type, String property) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        String suffix = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+        try {
+            for (String getter : new String[] {"get" + suffix, "is" + suffix}) {
+                try {
+                    return lookup.unreflect(type.getMethod(getter)).asType(ACCESSOR_TYPE);
+                } catch (NoSuchMethodException e) {
+                    // try next accessor
+                }
+            }
+            return lookup.unreflectGetter(type.getField(property)).asType(ACCESSOR_TYPE);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.internal;
+
+import org.wasila.nats.annotation.Encoding;
+import org.wasila.nats.codec.Codec;
+import org.wasila.nats.codec.CodecNotFoundException;
+import org.wasila.nats.codec.Codecs;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class CodecSelector {
+
+    private final Codec defaultCodec;
+    private final Map<String, Codec> codecs = new HashMap<>();
+
+    public CodecSelector(Codec defaultCodec, List<Codec> codecs) {
+        this.defaultCodec = defaultCodec;
+        this.codecs.put(defaultCodec.name(), defaultCodec);
+        for (Codec codec : codecs) {
+            this.codecs.put(codec.name(), codec);
+        }
+    }
+
+    public Codec getDefault() {
+        return defaultCodec;
+    }
+
+    public Collection<Codec> getCodecs() {
+        return Collections.unmodifiableCollection(codecs.values());
+    }
+
+    // the first element carrying @Encoding wins, so pass the most specific one first
+    public Codec select(AnnotatedElement... elements) {
+        for (AnnotatedElement element : elements) {
+            Encoding encoding = element.getAnnotation(Encoding.class);
+            if (encoding != null) {
+                return forName(encoding.value());
+            }
+        }
+        return defaultCodec;
+    }
+
+    public Codec forTag(byte tag) {
+        for (Codec codec : codecs.values()) {
+            if (codec.tag() == tag) {
+                return codec;
+            }
+        }
+        String name = Codecs.nameForTag(tag);
+        return name != null ? Codecs.forName(name) : null;
+    }
+
+    public Codec forName(String name) {
+        Codec codec = codecs.get(name);
+        if (codec == null) {
+            codec = Codecs.forName(name);
+        }
+        if (codec == null) {
+            throw new CodecNotFoundException("Unknown codec '" + name + "', register it with the builder or add its module to the classpath");
+        }
+        return codec;
+    }
+
+}
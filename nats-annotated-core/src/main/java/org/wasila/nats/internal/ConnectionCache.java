@@ -21,47 +21,180 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class ConnectionCache {
 
     private final Logger log = LoggerFactory.getLogger(ConnectionCache.class);
 
-    private Map<String, ConnectionFactory> factories = new HashMap<>();
+    private final ConcurrentMap<String, ConnectionFactory> factories = new ConcurrentHashMap<>();
 
-    private Map<String, Connection> connections = new HashMap<>();
+    // stripe 0 of each url is the connection shared by single-connection publishers and routers
+    private final ConcurrentMap<String, Stripes> connections = new ConcurrentHashMap<>();
 
     private Thread shutdownHook;
 
-    private static ConnectionCache instance;
+    private static final class InstanceHolder {
+        private static final ConnectionCache INSTANCE = new ConnectionCache();
+    }
+
+    // established connections are read from a volatile array without locking; only creating new ones
+    // takes the lock of that url, so concurrent first calls still end up with a single connection per stripe
+    static final class Stripes {
+        private volatile Connection[] connections = new Connection[0];
+
+        // the missing stripes connect side by side and are published together once all of them are up
+        synchronized Connection[] grow(int count, ConnectionFactory factory) throws IOException, TimeoutException {
+            Connection[] current = connections;
+            if (current.length >= count) {
+                return current;
+            }
+            Connection[] grown = Arrays.copyOf(current, count);
+            if (count - current.length == 1) {
+                grown[current.length] = factory.createConnection();
+            } else {
+                connect(grown, current.length, factory);
+            }
+            connections = grown;
+            return grown;
+        }
+
+        private static void connect(Connection[] stripes, int from, ConnectionFactory factory)
+                throws IOException, TimeoutException {
+            ExecutorService executor = Executors.newFixedThreadPool(stripes.length - from,
+                    new NamedThreadFactory("nats-connect"));
+            List<Future<Connection>> pending = new ArrayList<>();
+            try {
+                for (int i = from; i < stripes.length; i++) {
+                    pending.add(executor.submit(factory::createConnection));
+                }
+                for (int i = from; i < stripes.length; i++) {
+                    stripes[i] = pending.get(i - from).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closeAll(pending);
+                throw new IOException("Interrupted while connecting", e);
+            } catch (ExecutionException e) {
+                closeAll(pending);
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof TimeoutException) {
+                    throw (TimeoutException) e.getCause();
+                }
+                throw new IOException("Connection failed", e.getCause());
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        // stripes of a failed grow are never published, so whatever did connect is closed here
+        private static void closeAll(List<Future<Connection>> pending) {
+            for (Future<Connection> future : pending) {
+                try {
+                    future.get().close();
+                } catch (InterruptedException | ExecutionException e) {
+                    // not connected, nothing to close
+                }
+            }
+        }
+
+        synchronized Connection[] clear() {
+            Connection[] current = connections;
+            connections = new Connection[0];
+            return current;
+        }
+    }
 
     private ConnectionCache() {
         registerCleanupTask();
     }
 
+    // get() first: on Java 8 computeIfAbsent locks the bin even when the key is present
     public ConnectionFactory getConnectionFactory(final String connectionUri) {
-        return factories.computeIfAbsent(connectionUri, ConnectionFactory::new);
+        ConnectionFactory factory = factories.get(connectionUri);
+        return factory != null ? factory : factories.computeIfAbsent(connectionUri, ConnectionFactory::new);
     }
 
     public static Connection getConnectionForUrl(String connectionUrl) throws IOException, TimeoutException {
         return getInstance().getOrCreateConnection(connectionUrl);
     }
 
-    protected synchronized Connection getOrCreateConnection(final String connectionUri) throws IOException, TimeoutException {
-        final ConnectionFactory factory = getConnectionFactory(connectionUri);
-        Connection connection = connections.get(connectionUri);
-        if (connection == null) {
-            connection = factory.createConnection();
-            connections.put(connectionUri, connection);
+    public static List<Connection> getConnectionsForUrl(String connectionUrl, int count) throws IOException, TimeoutException {
+        return getInstance().getOrCreateConnections(connectionUrl, count);
+    }
+
+    // connects to all urls in parallel so that startup pays for the slowest handshake rather than their sum
+    public static void warmUp(Collection<String> connectionUrls, int count, long timeout, TimeUnit unit)
+            throws IOException, TimeoutException, InterruptedException {
+        if (connectionUrls.isEmpty()) {
+            return;
         }
-        return connection;
+        ExecutorService executor = Executors.newFixedThreadPool(connectionUrls.size(), new NamedThreadFactory("nats-warmup"));
+        try {
+            List<Future<List<Connection>>> pending = new ArrayList<>();
+            for (String url : connectionUrls) {
+                pending.add(executor.submit(() -> getConnectionsForUrl(url, count)));
+            }
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (Future<List<Connection>> future : pending) {
+                try {
+                    future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    if (e.getCause() instanceof TimeoutException) {
+                        throw (TimeoutException) e.getCause();
+                    }
+                    throw new IOException("Connection warm-up failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected Connection getOrCreateConnection(final String connectionUri) throws IOException, TimeoutException {
+        return stripes(connectionUri, 1)[0];
+    }
+
+    protected List<Connection> getOrCreateConnections(final String connectionUri, int count) throws IOException, TimeoutException {
+        if (count < 1) {
+            throw new IllegalArgumentException("Connection count must be positive");
+        }
+        return Collections.unmodifiableList(Arrays.asList(stripes(connectionUri, count)).subList(0, count));
     }
 
-    private synchronized void closeAllConnections() {
+    private Connection[] stripes(final String connectionUri, int count) throws IOException, TimeoutException {
+        Stripes stripes = connections.get(connectionUri);
+        if (stripes == null) {
+            stripes = connections.computeIfAbsent(connectionUri, uri -> new Stripes());
+        }
+        Connection[] current = stripes.connections;
+        return current.length >= count ? current : stripes.grow(count, getConnectionFactory(connectionUri));
+    }
+
+    private void closeAllConnections() {
         log.info("Starting connection pool cleanup task");
-        connections.values().forEach(Connection::close);
+        for (Stripes stripes : connections.values()) {
+            for (Connection connection : stripes.clear()) {
+                connection.close();
+            }
+        }
         connections.clear();
     }
 
@@ -74,11 +207,8 @@ public class ConnectionCache {
         }
     }
 
-    private synchronized static ConnectionCache getInstance() {
-        if (instance == null) {
-            instance = new ConnectionCache();
-        }
-        return instance;
+    private static ConnectionCache getInstance() {
+        return InstanceHolder.INSTANCE;
     }
 
 }
@@ -0,0 +1,98 @@
+/**
+ * (C) Copyright 2017 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.internal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+public final class ObjectWriters {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<ReusableBuffer> BUFFERS = ThreadLocal.withInitial(ReusableBuffer::new);
+
+    private ObjectWriters() {
+    }
+
+    // binding a writer to a non-final declared type would make jackson ignore properties of runtime subclasses
+    public static ObjectWriter forType(ObjectMapper mapper, Class<?> type) {
+        if (type.isPrimitive() || type.isArray() || Modifier.isFinal(type.getModifiers())) {
+            return mapper.writerFor(type);
+        }
+        return mapper.writer();
+    }
+
+    // jnats only accepts whole arrays, so the payload is serialized into a per-thread buffer and copied out once
+    public static byte[] writeValueAsBytes(ObjectWriter writer, Object value) throws IOException {
+        return write(writer, value, -1);
+    }
+
+    public static byte[] writeValueAsBytes(ObjectWriter writer, Object value, byte prefix) throws IOException {
+        return write(writer, value, prefix);
+    }
+
+    private static byte[] write(ObjectWriter writer, Object value, int prefix) throws IOException {
+        ReusableBuffer buffer = BUFFERS.get();
+        if (buffer.inUse) {
+            buffer = new ReusableBuffer();
+        }
+        buffer.inUse = true;
+        try {
+            if (prefix >= 0) {
+                buffer.write(prefix);
+            }
+            writer.writeValue(buffer, value);
+            return buffer.toByteArray();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static final class ReusableBuffer extends ByteArrayOutputStream {
+
+        private boolean inUse;
+
+        private ReusableBuffer() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        private void release() {
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[INITIAL_BUFFER_SIZE];
+            }
+            count = 0;
+            inUse = false;
+        }
+
+        @Override
+        public synchronized byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// direct-mapped: a subject evicts whatever hashed to the same slot, so the size stays bounded and lookups take no lock
+public final class SubjectCache {
+
+    private final Entry[] entries;
+    private final int mask;
+
+    public static final class Entry {
+        private final String subject;
+        private final String[] segments;
+
+        private Entry(String subject) {
+            this.subject = subject;
+            this.segments = segments(subject);
+        }
+
+        public String subject() {
+            return subject;
+        }
+
+        public int segmentCount() {
+            return segments.length;
+        }
+
+        public String segment(int index) {
+            return segments[index];
+        }
+    }
+
+    public SubjectCache(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Subject cache capacity must not be negative");
+        }
+        this.entries = new Entry[capacity <= 1 ? capacity : Integer.highestOneBit(capacity - 1) << 1];
+        this.mask = entries.length - 1;
+    }
+
+    public static Entry split(String subject) {
+        return new Entry(subject);
+    }
+
+    public boolean isEnabled() {
+        return entries.length > 0;
+    }
+
+    public Entry get(String subject) {
+        Entry entry = find(subject);
+        if (entry == null) {
+            entry = new Entry(subject);
+            if (entries.length > 0) {
+                entries[spread(subject.hashCode()) & mask] = entry;
+            }
+        }
+        return entry;
+    }
+
+    // the cached entry of the subject, or null on a miss; never allocates nor writes to the shared slots
+    public Entry find(String subject) {
+        if (entries.length == 0) {
+            return null;
+        }
+        // entries are immutable, so an unsynchronized read sees either null or a fully built entry
+        Entry entry = entries[spread(subject.hashCode()) & mask];
+        return entry != null && (entry.subject == subject || entry.subject.equals(subject)) ? entry : null;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static String[] segments(String subject) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= subject.length(); i++) {
+            if (i == subject.length() || subject.charAt(i) == '.') {
+                segments.add(subject.substring(start, i));
+                start = i + 1;
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+}
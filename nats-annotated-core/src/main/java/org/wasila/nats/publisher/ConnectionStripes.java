@@ -0,0 +1,68 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.publisher;
+
+import io.nats.client.Connection;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class ConnectionStripes {
+
+    private final Connection[] connections;
+    private final ReplyInbox[] inboxes;
+    private final ConnectionSelection selection;
+    private final Executor replyExecutor;
+    private final AtomicInteger next = new AtomicInteger();
+
+    ConnectionStripes(List<Connection> connections, ConnectionSelection selection, Executor replyExecutor,
+                      boolean requests) {
+        if (connections.isEmpty()) {
+            throw new PublisherConfigurationException("Publisher needs at least one connection");
+        }
+        this.connections = connections.toArray(new Connection[connections.size()]);
+        this.inboxes = new ReplyInbox[this.connections.length];
+        if (requests) {
+            for (int i = 0; i < inboxes.length; i++) {
+                inboxes[i] = ReplyInbox.forConnection(this.connections[i]);
+            }
+        }
+        this.selection = selection;
+        this.replyExecutor = replyExecutor;
+    }
+
+    Object invoke(PublishPlan plan, Object[] args) throws IOException, TimeoutException {
+        int stripe = select(plan, args);
+        return plan.invoke(connections[stripe], inboxes[stripe], replyExecutor, args);
+    }
+
+    // key affinity keeps every message of one key, or of one subject when the method declares no key, on a
+    // single connection so that their relative order is preserved
+    private int select(PublishPlan plan, Object[] args) {
+        if (connections.length == 1) {
+            return 0;
+        }
+        if (selection == ConnectionSelection.KEY_AFFINITY) {
+            int hash = plan.affinityKey(args).hashCode();
+            return Math.floorMod(hash ^ (hash >>> 16), connections.length);
+        }
+        return Math.floorMod(next.getAndIncrement(), connections.length);
+    }
+
+}
@@ -0,0 +1,238 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.publisher;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import org.wasila.nats.annotation.Batch;
+import org.wasila.nats.annotation.OrderingKey;
+import org.wasila.nats.annotation.Publish;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.codec.Codec;
+import org.wasila.nats.codec.Decoder;
+import org.wasila.nats.codec.Encoder;
+import org.wasila.nats.internal.Accessors;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+final class PublishPlan {
+
+    private enum Mode {
+        PUBLISH, PUBLISH_BATCH, REQUEST, ASYNC_REQUEST
+    }
+
+    private final String subject;
+    private final String replyTo;
+    private final int timeout;
+    private final TimeUnit timeoutUnit;
+    private final Encoder encoder;
+    private final Decoder decoder;
+    private final Mode mode;
+    private final byte replyTag;
+    private final int keyPosition;
+    private final MethodHandle keyAccessor;
+
+    private PublishPlan(Method method, Codec codec, boolean tagged) {
+        Subject baseSubject = method.getDeclaringClass().getAnnotation(Subject.class);
+        Publish publish = method.getAnnotation(Publish.class);
+
+        String subjectValue = baseSubject != null ? baseSubject.value() : "";
+        if (publish != null) {
+            if (!subjectValue.isEmpty()) {
+                subjectValue += ".";
+            }
+            subjectValue += publish.subject();
+        }
+        this.subject = subjectValue;
+        this.replyTo = publish == null || publish.replyTo().isEmpty() ? null : publish.replyTo();
+        this.timeout = publish != null ? publish.timeout() : -1;
+        this.timeoutUnit = publish != null ? publish.timeoutUnit() : TimeUnit.MILLISECONDS;
+        this.replyTag = tagged ? codec.tag() : 0;
+        Batch batch = method.getAnnotation(Batch.class);
+
+        int keyPosition = -1;
+        MethodHandle keyAccessor = null;
+        Parameter[] parameters = method.getParameters();
+        for (int i = 0; batch == null && i < parameters.length; i++) {
+            OrderingKey orderingKey = parameters[i].getAnnotation(OrderingKey.class);
+            if (orderingKey != null) {
+                keyPosition = i;
+                if (!orderingKey.value().isEmpty()) {
+                    keyAccessor = Accessors.find(parameters[i].getType(), orderingKey.value());
+                    if (keyAccessor == null) {
+                        throw new PublisherConfigurationException(String.format(
+                                "Method %s::%s: no public accessor for ordering key %s in %s",
+                                method.getDeclaringClass().getName(), method.getName(), orderingKey.value(),
+                                parameters[i].getType().getName()));
+                    }
+                }
+            }
+        }
+        this.keyPosition = keyPosition;
+        this.keyAccessor = keyAccessor;
+
+        if (batch != null) {
+            if (method.getReturnType() != void.class || method.getParameterCount() != 1
+                    || !Collection.class.isAssignableFrom(method.getParameterTypes()[0])) {
+                throw new PublisherConfigurationException(String.format(
+                        "Method %s::%s: batch publish needs a single Collection parameter and void return type",
+                        method.getDeclaringClass().getName(), method.getName()));
+            }
+            // a publisher sends whatever collection it is given with one flush, size and linger only shape subscribers
+            if (!isDefault(batch, "size", batch.size()) || !isDefault(batch, "linger", batch.linger())) {
+                throw new PublisherConfigurationException(String.format(
+                        "Method %s::%s: batch size and linger are not supported on publishers",
+                        method.getDeclaringClass().getName(), method.getName()));
+            }
+            this.mode = Mode.PUBLISH_BATCH;
+            this.encoder = encoder(codec, elementType(method.getGenericParameterTypes()[0]), tagged);
+            this.decoder = null;
+            return;
+        }
+
+        this.encoder = method.getParameterCount() > 0 ? encoder(codec, method.getParameterTypes()[0], tagged) : null;
+
+        if (method.getReturnType() == CompletableFuture.class || method.getReturnType() == CompletionStage.class) {
+            this.mode = Mode.ASYNC_REQUEST;
+            this.decoder = codec.decoder(replyType(method));
+        } else if (method.getReturnType() != void.class) {
+            this.mode = Mode.REQUEST;
+            this.decoder = codec.decoder(method.getReturnType());
+        } else {
+            this.mode = Mode.PUBLISH;
+            this.decoder = null;
+        }
+    }
+
+    static PublishPlan compile(Method method, Codec codec, boolean tagged) {
+        return new PublishPlan(method, codec, tagged);
+    }
+
+    private static Encoder encoder(Codec codec, Type type, boolean tagged) {
+        return tagged ? codec.taggedEncoder(type) : codec.encoder(type);
+    }
+
+    boolean isRequest() {
+        return mode == Mode.REQUEST || mode == Mode.ASYNC_REQUEST;
+    }
+
+    // the @OrderingKey argument (or its property) when there is one, otherwise the subject
+    Object affinityKey(Object[] args) {
+        Object key = keyPosition >= 0 ? args[keyPosition] : null;
+        if (key != null && keyAccessor != null) {
+            try {
+                key = (Object) keyAccessor.invokeExact(key);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+        return key != null ? key : subject;
+    }
+
+    Object invoke(Connection connection, ReplyInbox inbox, Executor replyExecutor, Object[] args)
+            throws IOException, TimeoutException {
+        if (mode == Mode.PUBLISH_BATCH) {
+            publishBatch(connection, (Collection<?>) args[0]);
+            return null;
+        }
+        if (mode == Mode.ASYNC_REQUEST) {
+            return requestAsync(connection, inbox, replyExecutor, args[0]);
+        }
+        byte[] data = encoder.encode(args[0]);
+        if (mode == Mode.REQUEST) {
+            return readReply(inbox.requestAndWait(connection, subject, data, timeout, timeoutUnit));
+        }
+        connection.publish(subject, replyTo, data);
+        return null;
+    }
+
+    // an async caller only looks at the returned future, so failures to send are reported through it as well
+    private CompletableFuture<Object> requestAsync(Connection connection, ReplyInbox inbox, Executor replyExecutor,
+                                                   Object request) {
+        try {
+            return inbox.request(connection, subject, encoder.encode(request), timeout, timeoutUnit, replyExecutor)
+                    .thenApply(this::readAsyncReply);
+        } catch (IOException | RuntimeException e) {
+            CompletableFuture<Object> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    // buffered publishes are written out by the connection's own flusher; only the last element asks for a
+    // synchronous flush so the whole collection reaches the socket together
+    private void publishBatch(Connection connection, Collection<?> items) throws IOException {
+        for (Iterator<?> it = items.iterator(); it.hasNext(); ) {
+            byte[] data = encoder.encode(it.next());
+            connection.publish(subject, replyTo, data, !it.hasNext());
+        }
+    }
+
+    private Object readReply(Message msg) throws IOException {
+        byte[] data = msg.getData();
+        int offset = replyTag != 0 && data.length > 0 && data[0] == replyTag ? 1 : 0;
+        return decoder.decode(data, offset, data.length - offset);
+    }
+
+    private Object readAsyncReply(Message msg) {
+        try {
+            return readReply(msg);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isDefault(Batch batch, String attribute, Object value) {
+        try {
+            return value.equals(batch.annotationType().getMethod(attribute).getDefaultValue());
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Type elementType(Type collectionType) {
+        if (collectionType instanceof ParameterizedType) {
+            return ((ParameterizedType) collectionType).getActualTypeArguments()[0];
+        }
+        return Object.class;
+    }
+
+    private static Type replyType(Method method) {
+        Type returnType = method.getGenericReturnType();
+        if (!(returnType instanceof ParameterizedType)) {
+            throw new PublisherConfigurationException(String.format("Method %s::%s must declare the reply type of %s",
+                    method.getDeclaringClass().getName(), method.getName(), method.getReturnType().getSimpleName()));
+        }
+        return ((ParameterizedType) returnType).getActualTypeArguments()[0];
+    }
+
+}
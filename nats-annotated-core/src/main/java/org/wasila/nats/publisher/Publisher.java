@@ -18,32 +18,98 @@ package org.wasila.nats.publisher;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.nats.client.Connection;
 import io.nats.client.ConnectionFactory;
-import io.nats.client.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wasila.nats.annotation.Publish;
 import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.codec.Codec;
+import org.wasila.nats.codec.Codecs;
+import org.wasila.nats.codec.JacksonCodec;
+import org.wasila.nats.internal.CodecSelector;
 import org.wasila.nats.internal.ConnectionCache;
+import org.wasila.nats.internal.GeneratedCode;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeoutException;
 
 public class Publisher<T> {
 
     private final Logger log = LoggerFactory.getLogger(Publisher.class);
 
-    private final Connection connection;
-
     private final Class clazz;
 
+    private final Map<Method, PublishPlan> plans;
+
+    private final ConnectionStripes connections;
+
     public static class Builder {
 
+        private ObjectMapper objectMapper;
+        private Codec codec;
+        private final List<Codec> codecs = new ArrayList<>();
+        private boolean tagPayloads;
+        private int connectionCount = 1;
+        private ConnectionSelection connectionSelection = ConnectionSelection.ROUND_ROBIN;
+        private Executor replyExecutor = ForkJoinPool.commonPool();
+
+        public Builder objectMapper(ObjectMapper objectMapper) {
+            this.objectMapper = objectMapper;
+            return this;
+        }
+
+        public Builder codec(Codec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        public Builder codecs(Codec... codecs) {
+            this.codecs.addAll(Arrays.asList(codecs));
+            return this;
+        }
+
+        // prefixes each payload with its codec tag so negotiating routers can decode mixed formats on one subject
+        public Builder tagPayloads(boolean tagPayloads) {
+            this.tagPayloads = tagPayloads;
+            return this;
+        }
+
+        // number of pooled connections per url used by target(clazz, url)
+        public Builder connections(int connectionCount) {
+            this.connectionCount = connectionCount;
+            return this;
+        }
+
+        public Builder connectionSelection(ConnectionSelection connectionSelection) {
+            this.connectionSelection = connectionSelection;
+            return this;
+        }
+
+        // completes the futures returned by asynchronous requests, off the connection's delivery threads
+        public Builder replyExecutor(Executor replyExecutor) {
+            this.replyExecutor = replyExecutor;
+            return this;
+        }
+
         public <T> T target(Class<T> clazz, Connection connection) throws IOException, TimeoutException {
-            Publisher<T> publisher = new Publisher<>(connection, clazz);
+            return target(clazz, Collections.singletonList(connection));
+        }
+
+        public <T> T target(Class<T> clazz, List<Connection> connections) throws IOException, TimeoutException {
+            Codec defaultCodec = codec != null ? codec
+                    : new JacksonCodec(Codecs.JSON, objectMapper != null ? objectMapper : new ObjectMapper());
+            Publisher<T> publisher = new Publisher<>(connections, connectionSelection, replyExecutor, clazz,
+                    new CodecSelector(defaultCodec, codecs), tagPayloads);
 
             boolean hasTopSubject = clazz.getAnnotation(Subject.class) != null;
 
@@ -59,7 +125,7 @@ public class Publisher<T> {
         }
 
         public <T> T target(Class<T> clazz, String url) throws IOException, TimeoutException {
-            return this.target(clazz, ConnectionCache.getConnectionForUrl(url));
+            return this.target(clazz, ConnectionCache.getConnectionsForUrl(url, connectionCount));
         }
 
         public <T> T target(Class<T> clazz) throws IOException, TimeoutException {
@@ -70,54 +136,41 @@ public class Publisher<T> {
 
     @SuppressWarnings("unchecked")
     private T createProxyImplementation() {
+        Class<?> generated = GeneratedCode.find(clazz, PublisherBinding.GENERATED_SUFFIX);
+        if (generated != null) {
+            try {
+                return (T) generated.getConstructor(PublisherBinding.class)
+                        .newInstance(new PublisherBinding(clazz, plans, connections));
+            } catch (ReflectiveOperationException e) {
+                throw new PublisherConfigurationException("Could not instantiate " + generated.getName(), e);
+            }
+        }
         return (T) Proxy.newProxyInstance(clazz.getClassLoader(),
                 new Class[] {clazz}, new PublisherInvocatorHandler());
     }
 
-    private Publisher(Connection connection, Class clazz) throws IOException, TimeoutException {
+    private Publisher(List<Connection> connections, ConnectionSelection selection, Executor replyExecutor,
+                      Class<T> clazz, CodecSelector codecs, boolean tagPayloads) throws IOException, TimeoutException {
         this.clazz = clazz;
-        this.connection = connection;
+        this.plans = new HashMap<>();
+        boolean requests = false;
+        for (Method method : clazz.getMethods()) {
+            PublishPlan plan = PublishPlan.compile(method, codecs.select(method, clazz), tagPayloads);
+            plans.put(method, plan);
+            requests |= plan.isRequest();
+        }
+        this.connections = new ConnectionStripes(connections, selection, replyExecutor, requests);
     }
 
     private class PublisherInvocatorHandler implements InvocationHandler {
         @Override
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            Subject baseSubject = method.getDeclaringClass().getAnnotation(Subject.class);
-            Publish subject = method.getAnnotation(Publish.class);
-
-            Object value = null;
-
-            String reply = (subject == null || subject.replyTo() == null || subject.replyTo().isEmpty()) ? null : subject.replyTo();
-            int timeout = subject != null ? subject.timeout() : -1;
-            TimeUnit timeoutUnit = subject != null ? subject.timeoutUnit() : TimeUnit.MILLISECONDS;
-
-            if (baseSubject != null || subject != null) {
-                Class<?> retType = method.getReturnType();
-                String subjectValue = "";
-
-                if (baseSubject != null) {
-                    subjectValue = baseSubject.value();
-                }
-
-                if (subject != null) {
-                    if (subjectValue != null && !subjectValue.isEmpty()) {
-                        subjectValue += ".";
-                    }
-                    subjectValue += subject.subject();
-                }
-
-                ObjectMapper objectMapper = new ObjectMapper();
-                if (retType != void.class) {
-                    Message msg = connection.request(subjectValue, objectMapper.writeValueAsBytes(args[0]),
-                            timeout, timeoutUnit);
-                    value = objectMapper.readValue(msg.getData(), retType);
-                } else {
-                    connection.publish(subjectValue, reply, objectMapper.writeValueAsBytes(args[0]));
-                }
-            } else {
-                log.warn("Could not invoke publish action: subject is null");
+            PublishPlan plan = plans.get(method);
+            if (plan == null) {
+                log.warn("Could not invoke publish action: method {} is not a publisher method", method.getName());
+                return null;
             }
-            return value;
+            return connections.invoke(plan, args);
         }
     }
 
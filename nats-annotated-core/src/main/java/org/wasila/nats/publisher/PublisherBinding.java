@@ -0,0 +1,73 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.publisher;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+public final class PublisherBinding {
+
+    public static final String GENERATED_SUFFIX = "$$NatsPublisher";
+
+    private final Class<?> type;
+    private final Map<Method, PublishPlan> plans;
+    private final ConnectionStripes connections;
+
+    PublisherBinding(Class<?> type, Map<Method, PublishPlan> plans, ConnectionStripes connections) {
+        this.type = type;
+        this.plans = plans;
+        this.connections = connections;
+    }
+
+    public Call call(String name, Class<?>... parameterTypes) {
+        try {
+            PublishPlan plan = plans.get(type.getMethod(name, parameterTypes));
+            if (plan == null) {
+                throw new PublisherConfigurationException(String.format("Method %s::%s is not a publisher method",
+                        type.getName(), name));
+            }
+            return new Call(plan);
+        } catch (NoSuchMethodException e) {
+            throw new PublisherConfigurationException(String.format("Method %s::%s not found", type.getName(), name), e);
+        }
+    }
+
+    public final class Call {
+
+        private final PublishPlan plan;
+
+        private Call(PublishPlan plan) {
+            this.plan = plan;
+        }
+
+        public Object invoke(Object... args) {
+            try {
+                return invokeChecked(args);
+            } catch (IOException | TimeoutException e) {
+                throw new UndeclaredThrowableException(e);
+            }
+        }
+
+        public Object invokeChecked(Object... args) throws IOException, TimeoutException {
+            return connections.invoke(plan, args);
+        }
+
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.publisher;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import org.wasila.nats.internal.NamedThreadFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class ReplyInbox {
+
+    private static final TimeoutWheel TIMEOUTS = new TimeoutWheel(10, TimeUnit.MILLISECONDS, 512,
+            new NamedThreadFactory("nats-publisher-timeout"));
+
+    private static final Map<Connection, ReplyInbox> INBOXES = new WeakHashMap<>();
+
+    private final String prefix;
+    private final ConcurrentMap<String, PendingReply> pending = new ConcurrentHashMap<>();
+    private final AtomicLong tokens = new AtomicLong();
+
+    private ReplyInbox(String prefix) {
+        this.prefix = prefix;
+    }
+
+    static synchronized ReplyInbox forConnection(Connection connection) {
+        ReplyInbox inbox = INBOXES.get(connection);
+        if (inbox == null) {
+            inbox = new ReplyInbox(connection.newInbox() + ".");
+            connection.subscribe(inbox.prefix + "*", inbox::onReply);
+            INBOXES.put(connection, inbox);
+        }
+        return inbox;
+    }
+
+    // the future is completed on the given executor so that stages chained by callers never run on the inbox
+    // delivery or timeout thread
+    CompletableFuture<Message> request(Connection connection, String subject, byte[] data,
+                                       long timeout, TimeUnit timeoutUnit, Executor executor) throws IOException {
+        return send(connection, subject, data, timeout, timeoutUnit, executor).future;
+    }
+
+    // nothing is chained on a blocking request's future, completing it in place only wakes up the caller
+    Message requestAndWait(Connection connection, String subject, byte[] data,
+                           long timeout, TimeUnit timeoutUnit) throws IOException, TimeoutException {
+        PendingReply reply = send(connection, subject, data, timeout, timeoutUnit, Runnable::run);
+        try {
+            return reply.future.get();
+        } catch (InterruptedException e) {
+            pending.remove(reply.replyTo, reply);
+            reply.cancelTimeout();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for reply to " + subject, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw (TimeoutException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private PendingReply send(Connection connection, String subject, byte[] data,
+                              long timeout, TimeUnit timeoutUnit, Executor executor) throws IOException {
+        final String replyTo = prefix + Long.toString(tokens.incrementAndGet(), 36);
+        final PendingReply reply = new PendingReply(replyTo, executor);
+        pending.put(replyTo, reply);
+        if (timeout > 0) {
+            reply.timeout = TIMEOUTS.schedule(() -> expire(replyTo, subject), timeout, timeoutUnit);
+        }
+        try {
+            connection.publish(subject, replyTo, data);
+        } catch (IOException | RuntimeException e) {
+            pending.remove(replyTo);
+            reply.cancelTimeout();
+            throw e;
+        }
+        return reply;
+    }
+
+    private void onReply(Message msg) {
+        PendingReply reply = pending.remove(msg.getSubject());
+        if (reply != null) {
+            reply.cancelTimeout();
+            reply.complete(() -> reply.future.complete(msg));
+        }
+    }
+
+    private void expire(String replyTo, String subject) {
+        PendingReply reply = pending.remove(replyTo);
+        if (reply != null) {
+            reply.complete(() -> reply.future.completeExceptionally(
+                    new TimeoutException("No reply received for request to " + subject)));
+        }
+    }
+
+    private static final class PendingReply {
+        private final String replyTo;
+        private final Executor executor;
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+        private volatile TimeoutWheel.Timeout timeout;
+
+        private PendingReply(String replyTo, Executor executor) {
+            this.replyTo = replyTo;
+            this.executor = executor;
+        }
+
+        private void cancelTimeout() {
+            TimeoutWheel.Timeout scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+        }
+
+        private void complete(Runnable completion) {
+            try {
+                executor.execute(completion);
+            } catch (RejectedExecutionException e) {
+                completion.run();
+            }
+        }
+    }
+
+}
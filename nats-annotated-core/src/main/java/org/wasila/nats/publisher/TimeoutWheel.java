@@ -0,0 +1,128 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.publisher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+final class TimeoutWheel {
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<Queue<Timeout>> buckets;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final ThreadFactory threadFactory;
+
+    private volatile Thread worker;
+    private long startTime;
+
+    TimeoutWheel(long tick, TimeUnit tickUnit, int wheelSize, ThreadFactory threadFactory) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+        }
+        this.tickNanos = tickUnit.toNanos(tick);
+        this.mask = wheelSize - 1;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        this.threadFactory = threadFactory;
+    }
+
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        start();
+        Timeout timeout = new Timeout(System.nanoTime() + unit.toNanos(delay), task);
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    private void start() {
+        if (worker == null) {
+            synchronized (this) {
+                if (worker == null) {
+                    startTime = System.nanoTime();
+                    Thread thread = threadFactory.newThread(this::run);
+                    thread.start();
+                    worker = thread;
+                }
+            }
+        }
+    }
+
+    private void run() {
+        long tick = 0;
+        while (true) {
+            long sleep = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            transferIncoming(tick);
+            expire(buckets.get((int) (tick & mask)), tick);
+            tick++;
+        }
+    }
+
+    private void transferIncoming(long currentTick) {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long deadlineTick = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos, currentTick);
+            timeout.deadlineTick = deadlineTick;
+            buckets.get((int) (deadlineTick & mask)).add(timeout);
+        }
+    }
+
+    // cancelled timeouts are dropped whenever their bucket comes round, not only once they are due
+    private void expire(Queue<Timeout> bucket, long tick) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.deadlineTick <= tick) {
+                it.remove();
+                timeout.task.run();
+            }
+        }
+    }
+
+    static final class Timeout {
+        private final long deadline;
+        private final Runnable task;
+        private long deadlineTick;
+        private volatile boolean cancelled;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * (C) Copyright 2017 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+final class BatchAccumulator {
+
+    private final int size;
+    private final long lingerNanos;
+    private final ScheduledExecutorService timer;
+    private final Consumer<List<Object>> flushAction;
+
+    private List<Object> batch;
+    private ScheduledFuture<?> lingerTask;
+
+    BatchAccumulator(int size, long lingerNanos, ScheduledExecutorService timer, Consumer<List<Object>> flushAction) {
+        this.size = size;
+        this.lingerNanos = lingerNanos;
+        this.timer = timer;
+        this.flushAction = flushAction;
+    }
+
+    void add(Object item) {
+        List<Object> full = null;
+        synchronized (this) {
+            if (batch == null) {
+                batch = new ArrayList<>(size);
+                if (lingerNanos > 0) {
+                    lingerTask = timer.schedule(this::flush, lingerNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            batch.add(item);
+            if (batch.size() >= size) {
+                full = takeBatch();
+            }
+        }
+        if (full != null) {
+            flushAction.accept(full);
+        }
+    }
+
+    void flush() {
+        List<Object> pending;
+        synchronized (this) {
+            pending = takeBatch();
+        }
+        if (pending != null) {
+            flushAction.accept(pending);
+        }
+    }
+
+    private List<Object> takeBatch() {
+        List<Object> taken = batch;
+        batch = null;
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+        return taken;
+    }
+
+}
@@ -0,0 +1,308 @@
+/**
+ * (C) Copyright 2017 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.Message;
+import org.wasila.nats.annotation.DispatchMode;
+import org.wasila.nats.annotation.OverflowPolicy;
+import org.wasila.nats.internal.NamedThreadFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+final class Dispatchers {
+
+    private static final Dispatcher INLINE = new Dispatcher() {
+        @Override
+        public void dispatch(Message msg, Object key, Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public int queueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long droppedCount() {
+            return 0;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    };
+
+    private final DispatchMode defaultMode;
+    private final int workerThreads;
+    private final int subscriptionThreads;
+    private final int partitions;
+    private final int defaultCapacity;
+    private final OverflowPolicy defaultPolicy;
+
+    private ExecutorService workerPool;
+    private ScheduledExecutorService timer;
+
+    Dispatchers(DispatchMode defaultMode, int workerThreads, int subscriptionThreads, int partitions,
+                int defaultCapacity, OverflowPolicy defaultPolicy) {
+        this.defaultMode = defaultMode == DispatchMode.DEFAULT ? DispatchMode.INLINE : defaultMode;
+        this.workerThreads = workerThreads;
+        this.subscriptionThreads = subscriptionThreads;
+        this.partitions = partitions;
+        this.defaultCapacity = defaultCapacity > 0 ? defaultCapacity : Integer.MAX_VALUE;
+        this.defaultPolicy = defaultPolicy == OverflowPolicy.DEFAULT ? OverflowPolicy.BLOCK : defaultPolicy;
+    }
+
+    int workerThreads() {
+        return workerThreads;
+    }
+
+    DispatchMode resolve(DispatchMode mode) {
+        return mode == DispatchMode.DEFAULT ? defaultMode : mode;
+    }
+
+    OverflowPolicy resolve(OverflowPolicy policy) {
+        return policy == OverflowPolicy.DEFAULT ? defaultPolicy : policy;
+    }
+
+    synchronized Dispatcher create(DispatchMode mode, String subject, int capacity, OverflowPolicy policy,
+                                   Consumer<Message> deadLetter) {
+        int queueCapacity = capacity > 0 ? capacity : defaultCapacity;
+        OverflowPolicy overflowPolicy = resolve(policy);
+        switch (resolve(mode)) {
+            case WORKER_POOL:
+                if (workerPool == null) {
+                    workerPool = Executors.newFixedThreadPool(workerThreads, new NamedThreadFactory("nats-router-worker"));
+                }
+                return new ExecutorDispatcher(workerPool, false, false, queueCapacity, overflowPolicy, deadLetter);
+            case SUBSCRIPTION_POOL:
+                return new ExecutorDispatcher(Executors.newFixedThreadPool(subscriptionThreads,
+                        new NamedThreadFactory("nats-router-" + subject)), true, false, queueCapacity, overflowPolicy,
+                        deadLetter);
+            case VIRTUAL_THREAD:
+                return new ExecutorDispatcher(newVirtualThreadExecutor(), true, true, queueCapacity, overflowPolicy,
+                        deadLetter);
+            case PARTITIONED:
+                return new PartitionedDispatcher(partitions, "nats-router-" + subject, queueCapacity, overflowPolicy, deadLetter);
+            default:
+                return INLINE;
+        }
+    }
+
+    synchronized Dispatcher createSerial(String subject, int capacity, OverflowPolicy policy,
+                                         Consumer<Message> deadLetter) {
+        return new ExecutorDispatcher(Executors.newSingleThreadExecutor(new NamedThreadFactory("nats-router-" + subject)),
+                true, false, capacity > 0 ? capacity : defaultCapacity, resolve(policy), deadLetter);
+    }
+
+    synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("nats-router-timer"));
+        }
+        return timer;
+    }
+
+    synchronized void shutdown() {
+        if (workerPool != null) {
+            workerPool.shutdown();
+            workerPool = null;
+        }
+        if (timer != null) {
+            timer.shutdown();
+            timer = null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new RouterConfigurationException("Virtual thread dispatch is not supported by this JVM", e);
+        }
+    }
+
+    // tasks wait in a bounded per-subscription queue. A pooled executor gets one drain per task added to the queue,
+    // none for a task that replaced a dropped one, so its own queue never holds more drains than there are tasks.
+    // A thread-per-task executor would empty the queue at once, so there at most `capacity` workers run, each
+    // draining the queue until it is empty
+    static final class ExecutorDispatcher implements Dispatcher {
+
+        private final ExecutorService executor;
+        private final boolean owned;
+        private final BlockingDeque<Runnable> queue;
+        private final OverflowPolicy policy;
+        private final Consumer<Message> deadLetter;
+        private final AtomicLong dropped = new AtomicLong();
+        private final Semaphore workers;
+
+        private final Runnable drain;
+
+        ExecutorDispatcher(ExecutorService executor, boolean owned, boolean threadPerTask, int capacity,
+                           OverflowPolicy policy, Consumer<Message> deadLetter) {
+            this.executor = executor;
+            this.owned = owned;
+            this.queue = new LinkedBlockingDeque<>(capacity);
+            this.policy = policy;
+            this.deadLetter = deadLetter;
+            this.workers = threadPerTask ? new Semaphore(capacity) : null;
+            this.drain = threadPerTask ? this::drainAll : this::drainOne;
+        }
+
+        @Override
+        public void dispatch(Message msg, Object key, Runnable task) {
+            if (enqueue(msg, task) && (workers == null || workers.tryAcquire())) {
+                executor.execute(drain);
+            }
+        }
+
+        private void drainOne() {
+            Runnable task = queue.pollFirst();
+            if (task != null) {
+                task.run();
+            }
+        }
+
+        // re-checks after giving the permit back, a task queued while the last worker was finishing is not left behind
+        private void drainAll() {
+            do {
+                try {
+                    Runnable task;
+                    while ((task = queue.pollFirst()) != null) {
+                        task.run();
+                    }
+                } finally {
+                    workers.release();
+                }
+            } while (!queue.isEmpty() && workers.tryAcquire());
+        }
+
+        private boolean enqueue(Message msg, Runnable task) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    if (queue.offerLast(task)) {
+                        return true;
+                    }
+                    dropped.incrementAndGet();
+                    return false;
+                case DROP_OLDEST:
+                    boolean replaced = false;
+                    while (!queue.offerLast(task)) {
+                        if (queue.pollFirst() != null) {
+                            dropped.incrementAndGet();
+                            replaced = true;
+                        }
+                    }
+                    // the drain submitted for the dropped task runs this one instead
+                    return !replaced;
+                case DEAD_LETTER:
+                    if (queue.offerLast(task)) {
+                        return true;
+                    }
+                    dropped.incrementAndGet();
+                    deadLetter.accept(msg);
+                    return false;
+                default:
+                    try {
+                        queue.putLast(task);
+                        return true;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+            }
+        }
+
+        @Override
+        public int queueDepth() {
+            return queue.size();
+        }
+
+        @Override
+        public long droppedCount() {
+            return dropped.get();
+        }
+
+        @Override
+        public void shutdown() {
+            if (owned) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static class PartitionedDispatcher implements Dispatcher {
+
+        private final ExecutorDispatcher[] lanes;
+
+        PartitionedDispatcher(int partitions, String name, int capacity, OverflowPolicy policy,
+                              Consumer<Message> deadLetter) {
+            NamedThreadFactory threadFactory = new NamedThreadFactory(name + "-lane");
+            lanes = new ExecutorDispatcher[partitions];
+            for (int i = 0; i < partitions; i++) {
+                lanes[i] = new ExecutorDispatcher(Executors.newSingleThreadExecutor(threadFactory), true, false,
+                        capacity, policy, deadLetter);
+            }
+        }
+
+        @Override
+        public void dispatch(Message msg, Object key, Runnable task) {
+            lanes[laneOf(key)].dispatch(msg, key, task);
+        }
+
+        private int laneOf(Object key) {
+            if (key == null) {
+                return 0;
+            }
+            int hash = key.hashCode();
+            return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % lanes.length;
+        }
+
+        @Override
+        public int queueDepth() {
+            int depth = 0;
+            for (ExecutorDispatcher lane : lanes) {
+                depth += lane.queueDepth();
+            }
+            return depth;
+        }
+
+        @Override
+        public long droppedCount() {
+            long dropped = 0;
+            for (ExecutorDispatcher lane : lanes) {
+                dropped += lane.droppedCount();
+            }
+            return dropped;
+        }
+
+        @Override
+        public void shutdown() {
+            for (ExecutorDispatcher lane : lanes) {
+                lane.shutdown();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,416 @@
+/**
+ * (C) Copyright 2017 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wasila.nats.annotation.Batch;
+import org.wasila.nats.annotation.ConnectionContext;
+import org.wasila.nats.annotation.MessageContext;
+import org.wasila.nats.annotation.OrderingKey;
+import org.wasila.nats.annotation.SubjectParam;
+import org.wasila.nats.codec.Codec;
+import org.wasila.nats.codec.Codecs;
+import org.wasila.nats.codec.Decoder;
+import org.wasila.nats.codec.Encoder;
+import org.wasila.nats.internal.Accessors;
+import org.wasila.nats.internal.SubjectCache;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+final class InvocationPlan {
+
+    private static final Logger log = LoggerFactory.getLogger(InvocationPlan.class);
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private static final int[] ORDERING_KEY_SLOT = {0};
+
+    private final ParameterResolver[] resolvers;
+    private final MethodHandle invoker;
+    private final GeneratedRouter generated;
+    private final int handler;
+    private final int[] subjectSegments;
+    private final int[] subjectPositions;
+    private final Encoder replyEncoder;
+    private final Encoder errorEncoder;
+    private final boolean async;
+    private final int orderingKeyPosition;
+    private final int[] orderingKeySegment;
+    private final MethodHandle orderingKeyAccessor;
+    private final int batchPosition;
+    private final Decoder batchElementDecoder;
+    private final Class<?> batchArrayType;
+    private final int payloadOffset;
+    private final Method method;
+    private final SubjectTemplate subjectTemplate;
+    private final SubjectCache subjects;
+    private final Connection connection;
+    private final IntFunction<Codec> codecForTag;
+    private final AtomicReferenceArray<InvocationPlan> taggedPlans;
+    private final Predicate<Message> filter;
+
+    private InvocationPlan(Method method, GeneratedRouter generated, int handler, SubjectTemplate subjectTemplate, SubjectCache subjects,
+                           Connection connection, Codec codec, IntFunction<Codec> codecForTag, boolean tagged) {
+        final int payloadOffset = tagged ? 1 : 0;
+        Parameter[] parameters = method.getParameters();
+        ParameterResolver[] resolvers = new ParameterResolver[parameters.length];
+        // pairs of (segment index << 32 | argument position), sorted so that extraction is a single pass
+        long[] subjectParams = new long[parameters.length];
+        int subjectParamCount = 0;
+        int orderingKeyPosition = -1;
+        int orderingKeySegment = -1;
+        MethodHandle orderingKeyAccessor = null;
+        int batchPosition = -1;
+        Decoder batchElementDecoder = null;
+        Class<?> batchArrayType = null;
+        boolean batch = method.getAnnotation(Batch.class) != null;
+
+        for (int i = 0; i < parameters.length; i++) {
+            Parameter param = parameters[i];
+            OrderingKey orderingKey = param.getAnnotation(OrderingKey.class);
+            if (batch && orderingKey == null && isBodyParameter(param)) {
+                Class<?> type = param.getType();
+                if (type.isArray()) {
+                    batchArrayType = type.getComponentType();
+                    batchElementDecoder = codec.decoder(batchArrayType);
+                } else if (type.isAssignableFrom(ArrayList.class) && param.getParameterizedType() instanceof ParameterizedType) {
+                    Type elementType = ((ParameterizedType) param.getParameterizedType()).getActualTypeArguments()[0];
+                    batchElementDecoder = codec.decoder(elementType);
+                } else {
+                    throw configurationError(method, "batch parameter must be a parametrized List or an array");
+                }
+                batchPosition = i;
+            } else if (batch && param.getAnnotation(ConnectionContext.class) == null) {
+                throw configurationError(method, "batch handler accepts only batch and @ConnectionContext parameters");
+            } else if (isBodyParameter(param)) {
+                resolvers[i] = createBodyResolver(param, codec, payloadOffset);
+                if (orderingKey != null && isRawOrLazy(param.getType())) {
+                    throw configurationError(method, "ordering key cannot be a raw or lazy payload");
+                }
+                if (orderingKey != null && !orderingKey.value().isEmpty()) {
+                    orderingKeyAccessor = createAccessor(param.getType(), orderingKey.value());
+                }
+            } else if (param.getAnnotation(ConnectionContext.class) != null) {
+                resolvers[i] = msg -> connection;
+            } else if (param.getAnnotation(MessageContext.class) != null) {
+                resolvers[i] = msg -> msg;
+            } else {
+                SubjectParam subjectParam = param.getAnnotation(SubjectParam.class);
+                int index = subjectParam != null ? subjectTemplate.getParamIndex(subjectParam.value()) : -1;
+                if (index >= 0) {
+                    subjectParams[subjectParamCount++] = ((long) index << 32) | i;
+                    if (orderingKey != null) {
+                        orderingKeySegment = index;
+                    }
+                }
+            }
+            if (orderingKey != null) {
+                if (orderingKeyPosition >= 0) {
+                    throw configurationError(method, "more than one ordering key declared");
+                }
+                orderingKeyPosition = i;
+            }
+        }
+
+        Arrays.sort(subjectParams, 0, subjectParamCount);
+        this.subjectSegments = new int[subjectParamCount];
+        this.subjectPositions = new int[subjectParamCount];
+        for (int i = 0; i < subjectParamCount; i++) {
+            subjectSegments[i] = (int) (subjectParams[i] >>> 32);
+            subjectPositions[i] = (int) subjectParams[i];
+        }
+
+        this.resolvers = resolvers;
+        this.generated = generated;
+        this.handler = handler;
+        this.invoker = generated == null ? createInvoker(method) : null;
+        this.async = CompletionStage.class.isAssignableFrom(method.getReturnType());
+        Type replyType = replyType(method, async);
+        this.replyEncoder = replyType == null ? null : tagged ? codec.taggedEncoder(replyType) : codec.encoder(replyType);
+        this.errorEncoder = tagged ? codec.taggedEncoder(Object.class) : codec.encoder(Object.class);
+        this.orderingKeyPosition = orderingKeyPosition;
+        this.orderingKeySegment = orderingKeySegment >= 0 ? new int[] {orderingKeySegment} : null;
+        this.orderingKeyAccessor = orderingKeyAccessor;
+        this.batchPosition = batchPosition;
+        this.batchElementDecoder = batchElementDecoder;
+        this.batchArrayType = batchArrayType;
+        this.payloadOffset = payloadOffset;
+        this.method = method;
+        this.subjectTemplate = subjectTemplate;
+        this.subjects = subjects;
+        this.connection = connection;
+        this.codecForTag = codecForTag;
+        this.taggedPlans = codecForTag != null ? new AtomicReferenceArray<>(0x20) : null;
+        this.filter = MessageFilters.compile(method, subjectTemplate, subjects, codec, payloadOffset);
+
+        if (batch && batchPosition < 0) {
+            throw configurationError(method, "batch handler needs a List or array parameter");
+        }
+    }
+
+    static InvocationPlan compile(Method method, SubjectTemplate subjectTemplate, SubjectCache subjects,
+                                  Connection connection, Codec codec, IntFunction<Codec> codecForTag) {
+        return new InvocationPlan(method, null, -1, subjectTemplate, subjects, connection, codec, codecForTag, false);
+    }
+
+    static InvocationPlan compile(Method method, GeneratedRouter generated, int handler, SubjectTemplate subjectTemplate,
+                                  SubjectCache subjects, Connection connection, Codec codec, IntFunction<Codec> codecForTag) {
+        return new InvocationPlan(method, generated, handler, subjectTemplate, subjects, connection, codec, codecForTag,
+                false);
+    }
+
+    // tagged payloads are decoded, and answered, with the codec named by their first byte
+    InvocationPlan forMessage(Message msg) {
+        byte[] data = msg.getData();
+        if (taggedPlans == null || data == null || data.length == 0 || !Codecs.isTag(data[0])) {
+            return this;
+        }
+        InvocationPlan plan = taggedPlans.get(data[0]);
+        if (plan == null) {
+            Codec codec = codecForTag.apply(data[0]);
+            if (codec == null) {
+                return this;
+            }
+            plan = taggedPlan(data[0], codec);
+        }
+        return plan;
+    }
+
+    // compiles the variants of the given codecs up front so that their first tagged message does not pay for it
+    void precompileTagged(Collection<Codec> codecs) {
+        if (taggedPlans == null) {
+            return;
+        }
+        for (Codec codec : codecs) {
+            if (Codecs.isTag(codec.tag()) && taggedPlans.get(codec.tag()) == null) {
+                taggedPlan(codec.tag(), codec);
+            }
+        }
+    }
+
+    // a codec that cannot bind this handler is remembered as the base plan, so the failure is reported once and its
+    // messages go through the handler's own codec and error handling
+    private InvocationPlan taggedPlan(byte tag, Codec codec) {
+        InvocationPlan plan;
+        try {
+            plan = new InvocationPlan(method, generated, handler, subjectTemplate, subjects, connection, codec, null, true);
+        } catch (RuntimeException e) {
+            log.warn(String.format("Codec %s cannot decode payloads of %s::%s, tagged messages use the handler's codec",
+                    codec.name(), method.getDeclaringClass().getName(), method.getName()), e);
+            plan = this;
+        }
+        taggedPlans.compareAndSet(tag, null, plan);
+        return taggedPlans.get(tag);
+    }
+
+    boolean accepts(Message msg) {
+        return filter == null || filter.test(msg);
+    }
+
+    private static Type replyType(Method method, boolean async) {
+        if (method.getReturnType() == void.class) {
+            return null;
+        }
+        if (!async) {
+            return method.getReturnType();
+        }
+        Type returnType = method.getGenericReturnType();
+        if (returnType instanceof ParameterizedType) {
+            return ((ParameterizedType) returnType).getActualTypeArguments()[0];
+        }
+        return Object.class;
+    }
+
+    static RouterConfigurationException configurationError(Method method, String message) {
+        return new RouterConfigurationException(String.format("Method %s::%s: %s",
+                method.getDeclaringClass().getName(), method.getName(), message));
+    }
+
+    private static ParameterResolver createBodyResolver(Parameter param, Codec codec, final int offset) {
+        Class<?> type = param.getType();
+        if (type == byte[].class) {
+            return msg -> offset == 0 ? msg.getData() : Arrays.copyOfRange(msg.getData(), offset, msg.getData().length);
+        }
+        if (type == ByteBuffer.class) {
+            return msg -> ByteBuffer.wrap(msg.getData(), offset, msg.getData().length - offset).slice().asReadOnlyBuffer();
+        }
+        if (type == Lazy.class) {
+            Type paramType = param.getParameterizedType();
+            final Decoder decoder = codec.decoder(paramType instanceof ParameterizedType
+                    ? ((ParameterizedType) paramType).getActualTypeArguments()[0] : Object.class);
+            return msg -> new Lazy<>(decoder, msg.getData(), offset, msg.getData().length - offset);
+        }
+        final Decoder decoder = codec.decoder(type);
+        return msg -> decoder.decode(msg.getData(), offset, msg.getData().length - offset);
+    }
+
+    private static boolean isRawOrLazy(Class<?> type) {
+        return type == byte[].class || type == ByteBuffer.class || type == Lazy.class;
+    }
+
+    private static boolean isBodyParameter(Parameter param) {
+        for (Annotation annotation : param.getAnnotations()) {
+            if (annotation.annotationType() != OrderingKey.class) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MethodHandle createAccessor(Class<?> type, String property) {
+        MethodHandle accessor = Accessors.find(type, property);
+        if (accessor == null) {
+            throw new RouterConfigurationException(String.format("No public accessor for ordering key %s in %s",
+                    property, type.getName()));
+        }
+        return accessor;
+    }
+
+
+    private static MethodHandle createInvoker(Method method) {
+        try {
+            method.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            if (Modifier.isStatic(method.getModifiers())) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+            return handle.asSpreader(Object[].class, method.getParameterCount()).asType(INVOKER_TYPE);
+        } catch (IllegalAccessException | SecurityException e) {
+            throw new WrappingException(e);
+        }
+    }
+
+    Object[] resolveArguments(Message msg) throws IOException {
+        Object[] args = new Object[resolvers.length];
+        for (int i = 0; i < resolvers.length; i++) {
+            if (resolvers[i] != null) {
+                args[i] = resolvers[i].resolve(msg);
+            }
+        }
+        if (subjectSegments.length > 0) {
+            // cached segments are used when the subject is already known, a miss is scanned without touching the cache
+            SubjectCache.Entry subject = subjects.find(msg.getSubject());
+            if (subject != null) {
+                for (int i = 0; i < subjectSegments.length; i++) {
+                    args[subjectPositions[i]] = subject.segment(subjectSegments[i]);
+                }
+            } else {
+                SubjectTemplate.extract(msg.getSubject(), subjectSegments, subjectPositions, args);
+            }
+        }
+        return args;
+    }
+
+    Object invoke(Object target, Object[] args) throws InvocationTargetException {
+        try {
+            // generated routers are called directly, a handle held in a plan field would not be inlined
+            if (generated != null) {
+                return generated.invoke(target, handler, args);
+            }
+            return (Object) invoker.invokeExact(target, args);
+        } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    boolean isBatch() {
+        return batchPosition >= 0;
+    }
+
+    Object readBatchElement(Message msg) throws IOException {
+        byte[] data = msg.getData();
+        return batchElementDecoder.decode(data, payloadOffset, data.length - payloadOffset);
+    }
+
+    Object[] resolveBatchArguments(List<Object> items) throws IOException {
+        Object[] args = new Object[resolvers.length];
+        for (int i = 0; i < resolvers.length; i++) {
+            if (resolvers[i] != null) {
+                args[i] = resolvers[i].resolve(null);
+            }
+        }
+        args[batchPosition] = batchArrayType != null
+                ? items.toArray((Object[]) Array.newInstance(batchArrayType, items.size())) : items;
+        return args;
+    }
+
+    boolean isKeyed() {
+        return orderingKeyPosition >= 0;
+    }
+
+    // only the key is resolved on the delivery thread, the remaining arguments are decoded on the lane
+    Object orderingKey(Message msg) throws IOException, InvocationTargetException {
+        if (orderingKeySegment != null) {
+            SubjectCache.Entry subject = subjects.find(msg.getSubject());
+            if (subject != null) {
+                return subject.segment(orderingKeySegment[0]);
+            }
+            Object[] key = new Object[1];
+            SubjectTemplate.extract(msg.getSubject(), orderingKeySegment, ORDERING_KEY_SLOT, key);
+            return key[0];
+        }
+        ParameterResolver resolver = resolvers[orderingKeyPosition];
+        Object key = resolver != null ? resolver.resolve(msg) : null;
+        if (orderingKeyAccessor == null || key == null) {
+            return key;
+        }
+        try {
+            return (Object) orderingKeyAccessor.invokeExact(key);
+        } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    Connection connection() {
+        return connection;
+    }
+
+    boolean isAsync() {
+        return async;
+    }
+
+    byte[] writeReply(Object reply) throws IOException {
+        return replyEncoder.encode(reply);
+    }
+
+    byte[] writeError(Object errorReply) throws IOException {
+        return errorEncoder.encode(errorReply);
+    }
+
+}
@@ -0,0 +1,61 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import org.wasila.nats.codec.Decoder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+public final class Lazy<T> {
+
+    private final Decoder decoder;
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    private volatile T value;
+
+    Lazy(Decoder decoder, byte[] data, int offset, int length) {
+        this.decoder = decoder;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get() {
+        T result = value;
+        if (result == null) {
+            try {
+                result = (T) decoder.decode(data, offset, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            value = result;
+        }
+        return result;
+    }
+
+    public boolean isDecoded() {
+        return value != null;
+    }
+
+    public int size() {
+        return length;
+    }
+
+}
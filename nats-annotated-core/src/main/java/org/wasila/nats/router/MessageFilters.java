@@ -0,0 +1,114 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.filter.FilteringParserDelegate;
+import com.fasterxml.jackson.core.filter.JsonPointerBasedFilter;
+import io.nats.client.Message;
+import org.wasila.nats.annotation.Filter;
+import org.wasila.nats.codec.Codec;
+import org.wasila.nats.codec.JacksonCodec;
+import org.wasila.nats.internal.SubjectCache;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+final class MessageFilters {
+
+    private MessageFilters() {
+    }
+
+    // all filters must match; a filter matches when the checked value equals any of its values
+    static Predicate<Message> compile(Method method, SubjectTemplate subjectTemplate, SubjectCache subjects,
+                                      Codec codec, int payloadOffset) {
+        Predicate<Message> result = null;
+        for (Filter filter : method.getAnnotationsByType(Filter.class)) {
+            Predicate<Message> predicate = compile(method, filter, subjectTemplate, subjects, codec, payloadOffset);
+            result = result == null ? predicate : result.and(predicate);
+        }
+        return result;
+    }
+
+    private static Predicate<Message> compile(Method method, Filter filter, SubjectTemplate subjectTemplate,
+                                              SubjectCache subjects, Codec codec, int payloadOffset) {
+        if (filter.subjectParam().isEmpty() == filter.pointer().isEmpty()) {
+            throw InvocationPlan.configurationError(method, "filter needs either a subject param or a pointer");
+        }
+        if (!filter.subjectParam().isEmpty()) {
+            int index = subjectTemplate.getParamIndex(filter.subjectParam());
+            if (index < 0) {
+                throw InvocationPlan.configurationError(method, "unknown subject param " + filter.subjectParam() + " in filter");
+            }
+            return subjects.isEnabled() ? cachedSubjectParamFilter(subjects, index, filter.value())
+                    : subjectParamFilter(index, filter.value());
+        }
+        if (!(codec instanceof JacksonCodec)) {
+            throw InvocationPlan.configurationError(method, "pointer filters need a Jackson based codec, got " + codec.name());
+        }
+        return pointerFilter(((JacksonCodec) codec).getObjectMapper().getFactory(),
+                JsonPointer.compile(filter.pointer()), filter.value(), payloadOffset);
+    }
+
+    private static Predicate<Message> subjectParamFilter(final int segmentIndex, final String[] values) {
+        return msg -> {
+            for (String value : values) {
+                if (SubjectTemplate.segmentEquals(msg.getSubject(), segmentIndex, value)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private static Predicate<Message> cachedSubjectParamFilter(final SubjectCache subjects, final int segmentIndex,
+                                                              String[] values) {
+        final Set<String> accepted = new HashSet<>(Arrays.asList(values));
+        final Predicate<Message> uncached = subjectParamFilter(segmentIndex, values);
+        return msg -> {
+            SubjectCache.Entry subject = subjects.find(msg.getSubject());
+            if (subject == null) {
+                return uncached.test(msg);
+            }
+            return segmentIndex < subject.segmentCount() && accepted.contains(subject.segment(segmentIndex));
+        };
+    }
+
+    // streams the payload only up to the pointed value, the rest of the document is never tokenized
+    private static Predicate<Message> pointerFilter(final JsonFactory factory, final JsonPointer pointer,
+                                                    String[] values, final int payloadOffset) {
+        final Set<String> accepted = new HashSet<>(Arrays.asList(values));
+        return msg -> {
+            byte[] data = msg.getData();
+            try (JsonParser parser = new FilteringParserDelegate(
+                    factory.createParser(data, payloadOffset, data.length - payloadOffset),
+                    new JsonPointerBasedFilter(pointer), false, false)) {
+                JsonToken token = parser.nextToken();
+                return token != null && token.isScalarValue() && accepted.contains(parser.getText());
+            } catch (IOException e) {
+                return false;
+            }
+        };
+    }
+
+}
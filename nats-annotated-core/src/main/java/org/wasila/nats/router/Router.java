@@ -18,39 +18,236 @@ package org.wasila.nats.router;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.nats.client.Connection;
 import io.nats.client.ConnectionFactory;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
 import io.nats.client.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.wasila.nats.annotation.ConnectionContext;
-import org.wasila.nats.annotation.MessageContext;
+import org.wasila.nats.annotation.Batch;
+import org.wasila.nats.annotation.DispatchMode;
+import org.wasila.nats.annotation.OverflowPolicy;
 import org.wasila.nats.annotation.QueueGroup;
+import org.wasila.nats.annotation.ResourceScope;
+import org.wasila.nats.annotation.Scope;
 import org.wasila.nats.annotation.Subject;
-import org.wasila.nats.annotation.SubjectParam;
 import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.codec.Codec;
+import org.wasila.nats.codec.Codecs;
+import org.wasila.nats.codec.JacksonCodec;
+import org.wasila.nats.internal.CodecSelector;
 import org.wasila.nats.internal.ConnectionCache;
+import org.wasila.nats.internal.GeneratedCode;
+import org.wasila.nats.internal.SubjectCache;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
 public class Router implements AutoCloseable {
 
     private final Logger log = LoggerFactory.getLogger(Router.class);
 
-    private final Connection connection;
-    private final ObjectMapper jsonMapper;
+    // routes, or coalesced groups of routes, are spread round-robin over the connections (nextConnection is guarded
+    // by registrationLock), each route replies on the connection it receives on
+    private final List<Connection> connections;
+    private int nextConnection;
+    private final CodecSelector codecs;
+    private final SubjectCache subjects;
+
+    private final Dispatchers dispatchers;
+
+    private final String deadLetterSubject;
+    private final Function<Throwable, ?> errorMapper;
+    private final boolean coalesceSubscriptions;
+    private final boolean negotiateCodecs;
+
+    // copy-on-write so metrics read without locking; changes are serialized on registrationLock so that
+    // register, unregister, close and the shutdown hook never interleave, message dispatch never takes it
+    private final List<Registration> registrations;
+    private final Object registrationLock = new Object();
+    private volatile Thread shutdownHook;
+
+    private static class Registration {
+        private final Object resource;
+        private final List<RoutedSubscription> subscriptions;
+
+        Registration(Object resource, List<RoutedSubscription> subscriptions) {
+            this.resource = resource;
+            this.subscriptions = subscriptions;
+        }
+    }
+
+    private static class RoutedSubscription {
+        private final String subject;
+        private final Subscription subscription;
+        private final Dispatcher dispatcher;
+        private final BatchAccumulator batch;
+        private final InvocationPlan plan;
+
+        RoutedSubscription(Subscription subscription, Route route) {
+            this.subject = route.subject;
+            this.subscription = subscription;
+            this.plan = route.plan;
+            this.dispatcher = route.dispatcher;
+            this.batch = route.batch;
+        }
+    }
+
+    private static class Route {
+        private final String subject;
+        private final String queueGroup;
+        private final Connection connection;
+        private final InvocationPlan plan;
+        private final MessageHandler handler;
+        private final Dispatcher dispatcher;
+        private final BatchAccumulator batch;
+
+        Route(String subject, String queueGroup, Connection connection, InvocationPlan plan, MessageHandler handler,
+              Dispatcher dispatcher, BatchAccumulator batch) {
+            this.subject = subject;
+            this.queueGroup = queueGroup;
+            this.connection = connection;
+            this.plan = plan;
+            this.handler = handler;
+            this.dispatcher = dispatcher;
+            this.batch = batch;
+        }
+    }
+
+    public static class Builder {
+
+        private ObjectMapper objectMapper;
+        private Codec codec;
+        private final List<Codec> codecs = new ArrayList<>();
+        private DispatchMode dispatchMode = DispatchMode.INLINE;
+        private int workerThreads = Runtime.getRuntime().availableProcessors();
+        private int subscriptionThreads = 1;
+        private int partitions = Runtime.getRuntime().availableProcessors();
+        private int queueCapacity = Integer.MAX_VALUE;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private String deadLetterSubject;
+        private Function<Throwable, ?> errorMapper;
+        private boolean coalesceSubscriptions;
+        private boolean negotiateCodecs;
+        private int subjectCacheSize = 1024;
+        private int connectionCount = 1;
+
+        public Builder objectMapper(ObjectMapper objectMapper) {
+            this.objectMapper = objectMapper;
+            return this;
+        }
+
+        public Builder codec(Codec codec) {
+            this.codec = codec;
+            return this;
+        }
 
-    private final List<Subscription> subscriptions;
-    private Thread shutdownHook;
+        public Builder codecs(Codec... codecs) {
+            this.codecs.addAll(Arrays.asList(codecs));
+            return this;
+        }
+
+        public Builder dispatchMode(DispatchMode dispatchMode) {
+            this.dispatchMode = dispatchMode;
+            return this;
+        }
+
+        public Builder workerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        public Builder subscriptionThreads(int subscriptionThreads) {
+            this.subscriptionThreads = subscriptionThreads;
+            return this;
+        }
+
+        public Builder partitions(int partitions) {
+            this.partitions = partitions;
+            return this;
+        }
+
+        public Builder queueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder deadLetterSubject(String deadLetterSubject) {
+            this.deadLetterSubject = deadLetterSubject;
+            return this;
+        }
+
+        public Builder errorMapper(Function<Throwable, ?> errorMapper) {
+            this.errorMapper = errorMapper;
+            return this;
+        }
+
+        // decodes payloads tagged by a publisher with tagPayloads(true) using the codec the tag names
+        public Builder negotiateCodecs(boolean negotiateCodecs) {
+            this.negotiateCodecs = negotiateCodecs;
+            return this;
+        }
+
+        // subscribes once per resource and queue group to a covering 'prefix.>' and routes locally by subject
+        public Builder coalesceSubscriptions(boolean coalesceSubscriptions) {
+            this.coalesceSubscriptions = coalesceSubscriptions;
+            return this;
+        }
+
+        // number of subjects kept pre-split, filled by warmUp and read by parameter extraction, filters and coalesced
+        // routing; 0 disables
+        public Builder subjectCacheSize(int subjectCacheSize) {
+            this.subjectCacheSize = subjectCacheSize;
+            return this;
+        }
+
+        // number of pooled connections per url used by build(url)
+        public Builder connections(int connectionCount) {
+            this.connectionCount = connectionCount;
+            return this;
+        }
+
+        public Router build(Connection connection) throws IOException, TimeoutException {
+            return build(Collections.singletonList(connection));
+        }
+
+        public Router build(List<Connection> connections) throws IOException, TimeoutException {
+            return new Router(connections, this);
+        }
+
+        public Router build(String url) throws IOException, TimeoutException {
+            return build(ConnectionCache.getConnectionsForUrl(url, connectionCount));
+        }
+
+        public Router build() throws IOException, TimeoutException {
+            return build(ConnectionFactory.DEFAULT_URL);
+        }
+
+    }
 
     public Router() throws IOException, TimeoutException {
         this(ConnectionFactory.DEFAULT_URL);
@@ -61,83 +258,300 @@ public class Router implements AutoCloseable {
     }
 
     public Router(Connection connection) throws IOException, TimeoutException {
-        this.jsonMapper = new ObjectMapper();
-        this.connection = connection;
-        this.subscriptions = new ArrayList<>();
-        registerCleanupTask();
+        this(Collections.singletonList(connection), builder());
     }
 
-    private interface TargetFactory {
-        Object get() throws InstantiationException, IllegalAccessException;
+    public Router(String url, ObjectMapper jsonMapper) throws IOException, TimeoutException {
+        this(ConnectionCache.getConnectionForUrl(url), jsonMapper);
     }
 
-    private void addSubscription(String baseSubject, String queueGroup, final Method method, final TargetFactory targetFactory) {
-        Map<Integer, String> subjectParams = new HashMap<>();
+    public Router(Connection connection, ObjectMapper jsonMapper) throws IOException, TimeoutException {
+        this(Collections.singletonList(connection), builder().objectMapper(jsonMapper));
+    }
 
-        final String[] subjectBaseSegments = baseSubject.split("\\.");
+    private Router(List<Connection> connections, Builder builder) throws IOException, TimeoutException {
+        if (connections.isEmpty()) {
+            throw new RouterConfigurationException("Router needs at least one connection");
+        }
+        this.codecs = new CodecSelector(builder.codec != null ? builder.codec
+                : new JacksonCodec(Codecs.JSON, builder.objectMapper != null ? builder.objectMapper : new ObjectMapper()),
+                builder.codecs);
+        this.subjects = new SubjectCache(builder.subjectCacheSize);
+        this.connections = new ArrayList<>(connections);
+        this.dispatchers = new Dispatchers(builder.dispatchMode, builder.workerThreads, builder.subscriptionThreads,
+                builder.partitions, builder.queueCapacity, builder.overflowPolicy);
+        this.deadLetterSubject = builder.deadLetterSubject;
+        this.errorMapper = builder.errorMapper;
+        this.coalesceSubscriptions = builder.coalesceSubscriptions;
+        this.negotiateCodecs = builder.negotiateCodecs;
+        this.registrations = new CopyOnWriteArrayList<>();
+        registerCleanupTask();
+    }
 
-        String subject = IntStream.range(0, subjectBaseSegments.length)
-                .mapToObj(index -> {
-                    String s = subjectBaseSegments[index];
-                    if (s.startsWith("{") && s.endsWith("}")) {
-                        subjectParams.put(index, s.substring(1, s.length()-1));
-                        return "*";
-                    } else {
-                        return s;
-                    }
-                })
-                .collect(Collectors.joining("."));
+    public static Builder builder() {
+        return new Builder();
+    }
 
-        Subscription subscription = connection.subscribe(subject, queueGroup, msg -> {
+    private Route createRoute(SubjectTemplate subjectTemplate, String queueGroup, Connection connection,
+                              Subscribe subscribe, final Method method, Codec codec, GeneratedRouter generated,
+                              int handler, final TargetFactory targetFactory) {
+        IntFunction<Codec> codecForTag = negotiateCodecs ? this::codecForTag : null;
+
+        final InvocationPlan plan = generated != null
+                ? InvocationPlan.compile(method, generated, handler, subjectTemplate, subjects, connection, codec,
+                        codecForTag)
+                : InvocationPlan.compile(method, subjectTemplate, subjects, connection, codec, codecForTag);
+        final DispatchMode dispatchMode = dispatchers.resolve(subscribe.dispatch());
+        final boolean keyed = dispatchMode == DispatchMode.PARTITIONED;
+        if (keyed && !plan.isKeyed()) {
+            throw InvocationPlan.configurationError(method, "partitioned dispatch needs an @OrderingKey parameter");
+        }
+        if (dispatchMode == DispatchMode.VIRTUAL_THREAD && targetFactory.isThreadConfined()) {
+            throw InvocationPlan.configurationError(method, "thread scoped resources cannot use virtual thread dispatch");
+        }
+        Batch batchAnnotation = plan.isBatch() ? method.getAnnotation(Batch.class) : null;
+        if (batchAnnotation != null && (batchAnnotation.size() <= 0 || batchAnnotation.linger() < 0)) {
+            throw InvocationPlan.configurationError(method, "batch size must be positive and linger not negative");
+        }
+        Consumer<Message> deadLetterHandler = createDeadLetterHandler(subscribe, method, plan, connection);
+        // lingering batches are flushed from the shared timer as well as from the delivery thread, an inline handler
+        // gets a thread of its own so that it is never called concurrently nor on the timer
+        final Dispatcher dispatcher = batchAnnotation != null && batchAnnotation.linger() > 0
+                && dispatchMode == DispatchMode.INLINE
+                ? dispatchers.createSerial(subjectTemplate.getSubscriptionSubject(), subscribe.queueCapacity(),
+                        subscribe.overflow(), deadLetterHandler)
+                : dispatchers.create(subscribe.dispatch(), subjectTemplate.getSubscriptionSubject(),
+                        subscribe.queueCapacity(), subscribe.overflow(), deadLetterHandler);
+        final BatchAccumulator batch = batchAnnotation != null ? createBatchAccumulator(batchAnnotation,
+                items -> dispatcher.dispatch(null, null, () -> handleBatch(plan, targetFactory, items))) : null;
+
+        MessageHandler messageHandler = msg -> {
             try {
-                String[] subjectSegments = msg.getSubject().split("\\.");
+                final InvocationPlan messagePlan = plan.forMessage(msg);
+                if (!messagePlan.accepts(msg)) {
+                    return;
+                }
+                if (batch != null) {
+                    batch.add(messagePlan.readBatchElement(msg));
+                } else if (keyed) {
+                    dispatchKeyed(messagePlan, dispatcher, targetFactory, msg);
+                } else {
+                    dispatcher.dispatch(msg, null, () -> handleMessage(messagePlan, targetFactory, msg));
+                }
+            } catch (RejectedExecutionException e) {
+                log.warn("Message dropped, dispatcher for " + msg.getSubject() + " is shut down");
+            } catch (IOException e) {
+                log.error("Exception while reading batch element", e);
+            }
+        };
+        return new Route(subjectTemplate.getSubscriptionSubject(), queueGroup, connection, plan, messageHandler,
+                dispatcher, batch);
+    }
 
-                Map<String, String> paramsMapping = new HashMap<>();
+    // a miss is split without caching it, so cold subjects cannot evict the warmed ones
+    private SubjectCache.Entry splitSubject(String subject) {
+        SubjectCache.Entry entry = subjects.find(subject);
+        return entry != null ? entry : SubjectCache.split(subject);
+    }
 
-                for (Map.Entry<Integer, String> subjectParam : subjectParams.entrySet()) {
-                    String paramName = subjectParam.getValue();
-                    String paramValue = subjectSegments[subjectParam.getKey()];
-                    paramsMapping.put(paramName, paramValue);
-                }
+    private void subscribe(Route route, List<RoutedSubscription> subscriptions) {
+        Subscription subscription = route.connection.subscribe(route.subject, route.queueGroup, route.handler);
+        subscriptions.add(new RoutedSubscription(subscription, route));
+    }
+
+    private void subscribeCoalesced(List<Route> routes, List<RoutedSubscription> subscriptions) {
+        Map<String, List<Route>> byQueueGroup = new LinkedHashMap<>();
+        for (Route route : routes) {
+            byQueueGroup.computeIfAbsent(route.queueGroup, queueGroup -> new ArrayList<>()).add(route);
+        }
+        for (Map.Entry<String, List<Route>> group : byQueueGroup.entrySet()) {
+            List<Route> groupRoutes = group.getValue();
+            List<String> groupSubjects = new ArrayList<>();
+            groupRoutes.forEach(route -> groupSubjects.add(route.subject));
+            String prefix = coveringPrefix(groupSubjects);
+            if (groupRoutes.size() < 2 || prefix == null) {
+                groupRoutes.forEach(route -> subscribe(route, subscriptions));
+                continue;
+            }
+            SubjectTrie<MessageHandler> trie = new SubjectTrie<>();
+            for (Route route : groupRoutes) {
+                trie.insert(route.subject, route.handler);
+            }
+            String coveringSubject = prefix + ".>";
+            // every route of the group was given the same connection, see assignConnections
+            Subscription subscription = groupRoutes.get(0).connection.subscribe(coveringSubject, group.getKey(),
+                    msg -> trie.match(splitSubject(msg.getSubject()), handler -> handler.onMessage(msg)));
+            for (Route route : groupRoutes) {
+                subscriptions.add(new RoutedSubscription(subscription, route));
+            }
+            log.info(" Coalesced " + groupRoutes.size() + " subscriptions into " + coveringSubject);
+        }
+    }
 
-                Object[] params = Arrays.stream(method.getParameters()).map(param -> {
-                            if (param.getAnnotations().length == 0) {
-                                try {
-                                    return jsonMapper.readValue(msg.getData(), param.getType());
-                                } catch (IOException e) {
-                                    throw new WrappingException(e);
-                                }
-                            } else if (param.getAnnotation(ConnectionContext.class) != null) {
-                                return connection;
-                            } else if (param.getAnnotation(MessageContext.class) != null) {
-                                return msg;
-                            } else {
-                                SubjectParam subjectParam = param.getAnnotation(SubjectParam.class);
-                                if (subjectParam != null) {
-                                    return paramsMapping.get(subjectParam.value());
-                                }
-                            }
-                            return null;
-                        }
-                ).toArray();
-
-                Object reply = method.invoke(targetFactory.get(), params);
-
-                if (reply != null) {
-                    connection.publish(msg.getReplyTo(), jsonMapper.writeValueAsBytes(reply));
+    // longest run of literal segments shared by all subjects that still leaves each of them at least one more segment
+    private static String coveringPrefix(List<String> subjects) {
+        String[] common = null;
+        int length = 0;
+        for (String subject : subjects) {
+            String[] segments = subject.split("\\.");
+            if (common == null) {
+                common = segments;
+                length = segments.length - 1;
+                continue;
+            }
+            length = Math.min(length, segments.length - 1);
+            for (int i = 0; i < length; i++) {
+                if (!segments[i].equals(common[i])) {
+                    length = i;
                 }
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            if (common[i].equals("*") || common[i].equals(">")) {
+                length = i;
+            }
+        }
+        return length > 0 ? String.join(".", Arrays.asList(common).subList(0, length)) : null;
+    }
+
+    private Codec codecForTag(int tag) {
+        return codecs.forTag((byte) tag);
+    }
 
-            } catch (ReflectiveOperationException | IOException e) {
-                log.error("Exception while invoking subscription handler", e);
-            } catch (WrappingException e) {
-                log.error("Exception while invoking subscription handler", e.getCause());
+    private BatchAccumulator createBatchAccumulator(Batch batch, Consumer<List<Object>> flushAction) {
+        return new BatchAccumulator(batch.size(), batch.lingerUnit().toNanos(batch.linger()),
+                batch.linger() > 0 ? dispatchers.timer() : null, flushAction);
+    }
+
+    private Consumer<Message> createDeadLetterHandler(Subscribe subscribe, Method method, InvocationPlan plan,
+                                                      Connection connection) {
+        if (dispatchers.resolve(subscribe.overflow()) != OverflowPolicy.DEAD_LETTER) {
+            return null;
+        }
+        if (plan.isBatch()) {
+            throw InvocationPlan.configurationError(method, "dead letter overflow policy is not supported for batches");
+        }
+        final String subject = !subscribe.deadLetterSubject().isEmpty() ? subscribe.deadLetterSubject() : deadLetterSubject;
+        if (subject == null || subject.isEmpty()) {
+            throw InvocationPlan.configurationError(method, "dead letter overflow policy needs a dead letter subject");
+        }
+        return msg -> {
+            try {
+                connection.publish(subject, msg.getReplyTo(), msg.getData());
+            } catch (IOException e) {
+                log.error("Cannot publish rejected message to dead letter subject " + subject, e);
             }
-        });
-        subscriptions.add(subscription);
+        };
     }
 
-    private void doRegister(Class<?> clazz, TargetFactory targetFactory) {
-        List<Method> subscribeMethod = getMethodsAnnotatedWith(clazz, Subscribe.class);
+    private void dispatchKeyed(InvocationPlan plan, Dispatcher dispatcher, TargetFactory targetFactory, Message msg) {
+        try {
+            dispatcher.dispatch(msg, plan.orderingKey(msg), () -> handleMessage(plan, targetFactory, msg));
+        } catch (ReflectiveOperationException | IOException e) {
+            log.error("Exception while resolving ordering key", e);
+        }
+    }
+
+    private void handleMessage(InvocationPlan plan, TargetFactory targetFactory, Message msg) {
+        try {
+            handleMessage(plan, targetFactory, msg, plan.resolveArguments(msg));
+        } catch (IOException e) {
+            log.error("Exception while invoking subscription handler", e);
+        }
+    }
+
+    private void handleMessage(InvocationPlan plan, TargetFactory targetFactory, Message msg, Object[] params) {
+        Object target = null;
+        boolean releaseOnCompletion = false;
+        try {
+            target = targetFactory.get();
+            Object reply = plan.invoke(target, params);
+
+            if (plan.isAsync() && reply != null) {
+                final Object asyncTarget = target;
+                releaseOnCompletion = true;
+                ((CompletionStage<?>) reply).whenComplete((result, error) -> {
+                    targetFactory.release(asyncTarget);
+                    completeReply(plan, msg, result, error);
+                });
+            } else if (reply != null) {
+                publishReply(plan, msg, plan.writeReply(reply));
+            }
+
+        } catch (InvocationTargetException e) {
+            handleFailure(plan, msg, e.getCause());
+        } catch (ReflectiveOperationException | IOException e) {
+            log.error("Exception while invoking subscription handler", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Message dropped, interrupted while waiting for a pooled resource on " + msg.getSubject());
+        } catch (WrappingException e) {
+            log.error("Exception while invoking subscription handler", e.getCause());
+        } finally {
+            if (target != null && !releaseOnCompletion) {
+                targetFactory.release(target);
+            }
+        }
+    }
+
+    private void completeReply(InvocationPlan plan, Message msg, Object result, Throwable error) {
+        if (error != null) {
+            handleFailure(plan, msg, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            return;
+        }
+        try {
+            if (result != null) {
+                publishReply(plan, msg, plan.writeReply(result));
+            }
+        } catch (IOException e) {
+            log.error("Exception while publishing asynchronous reply", e);
+        }
+    }
+
+    private void handleFailure(InvocationPlan plan, Message msg, Throwable error) {
+        log.error("Exception while invoking subscription handler", error);
+        if (errorMapper == null) {
+            return;
+        }
+        try {
+            Object errorReply = errorMapper.apply(error);
+            if (errorReply != null) {
+                publishReply(plan, msg, plan.writeError(errorReply));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Exception while publishing error reply", e);
+        }
+    }
+
+    private void publishReply(InvocationPlan plan, Message msg, byte[] data) throws IOException {
+        if (msg.getReplyTo() != null) {
+            plan.connection().publish(msg.getReplyTo(), data);
+        } else {
+            log.debug("Reply dropped, message on " + msg.getSubject() + " has no reply subject");
+        }
+    }
+
+    private void handleBatch(InvocationPlan plan, TargetFactory targetFactory, List<Object> items) {
+        Object target = null;
+        try {
+            target = targetFactory.get();
+            plan.invoke(target, plan.resolveBatchArguments(items));
+        } catch (ReflectiveOperationException | IOException e) {
+            log.error("Exception while invoking batch subscription handler", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Batch dropped, interrupted while waiting for a pooled resource");
+        } finally {
+            if (target != null) {
+                targetFactory.release(target);
+            }
+        }
+    }
+
+    private void doRegister(Object resource, Class<?> clazz, TargetFactory targetFactory) {
+        GeneratedRouter generated = createGeneratedRouter(clazz);
+        List<Method> subscribeMethod = generated != null
+                ? Arrays.asList(generated.handlers()) : getMethodsAnnotatedWith(clazz, Subscribe.class);
         Subject classSubject = clazz.getAnnotation(Subject.class);
         String subjectPrefix = classSubject != null ? classSubject.value() : null;
         log.info("Registering " + subscribeMethod.size() + " methods");
@@ -146,6 +560,30 @@ public class Router implements AutoCloseable {
             throw new NoSubscriptionException("No registrable methods in resource");
         }
 
+        // dispatchers are created under the lock too, a concurrent close would otherwise shut down their pools
+        synchronized (registrationLock) {
+            List<Route> routes = new ArrayList<>();
+            try {
+                createRoutes(clazz, subscribeMethod, subjectPrefix, generated, targetFactory, routes);
+            } catch (RuntimeException e) {
+                routes.forEach(route -> route.dispatcher.shutdown());
+                throw e;
+            }
+
+            List<RoutedSubscription> subscriptions = new ArrayList<>();
+            if (coalesceSubscriptions) {
+                subscribeCoalesced(routes, subscriptions);
+            } else {
+                routes.forEach(route -> subscribe(route, subscriptions));
+            }
+            registrations.add(new Registration(resource, subscriptions));
+        }
+    }
+
+    private void createRoutes(Class<?> clazz, List<Method> subscribeMethod, String subjectPrefix,
+                              GeneratedRouter generated, TargetFactory targetFactory, List<Route> routes) {
+        List<SubjectTemplate> subjectTemplates = new ArrayList<>();
+        List<String> queueGroups = new ArrayList<>();
         for (Method method : subscribeMethod) {
             StringJoiner subjectJoiner = new StringJoiner(".");
 
@@ -159,27 +597,140 @@ public class Router implements AutoCloseable {
                 subjectJoiner.add(methodSubject.value());
             }
             QueueGroup queueGroup = method.getAnnotation(QueueGroup.class);
-            String queueGroupValue = queueGroup != null ? queueGroup.value() : null;
+            subjectTemplates.add(SubjectTemplate.compile(subjectJoiner.toString()));
+            queueGroups.add(queueGroup != null ? queueGroup.value() : null);
+        }
+
+        List<Connection> routeConnections = assignConnections(subjectTemplates, queueGroups);
+        for (int i = 0; i < subscribeMethod.size(); i++) {
+            Method method = subscribeMethod.get(i);
+            routes.add(createRoute(subjectTemplates.get(i), queueGroups.get(i), routeConnections.get(i),
+                    method.getAnnotation(Subscribe.class), method, codecs.select(method, clazz), generated, i,
+                    targetFactory));
+            log.info(" Method: " + method.getName() + ", Subject: " + subjectTemplates.get(i).getSubscriptionSubject());
+        }
+    }
+
+    // a group that will be coalesced shares one connection, so its plans, replies and dead letters use the
+    // connection its covering subscription receives on
+    private List<Connection> assignConnections(List<SubjectTemplate> subjectTemplates, List<String> queueGroups) {
+        Connection[] assigned = new Connection[subjectTemplates.size()];
+        if (coalesceSubscriptions) {
+            Map<String, List<Integer>> byQueueGroup = new LinkedHashMap<>();
+            for (int i = 0; i < assigned.length; i++) {
+                byQueueGroup.computeIfAbsent(queueGroups.get(i), queueGroup -> new ArrayList<>()).add(i);
+            }
+            for (List<Integer> group : byQueueGroup.values()) {
+                List<String> groupSubjects = new ArrayList<>();
+                group.forEach(i -> groupSubjects.add(subjectTemplates.get(i).getSubscriptionSubject()));
+                if (group.size() >= 2 && coveringPrefix(groupSubjects) != null) {
+                    Connection connection = nextConnection();
+                    group.forEach(i -> assigned[i] = connection);
+                }
+            }
+        }
+        for (int i = 0; i < assigned.length; i++) {
+            if (assigned[i] == null) {
+                assigned[i] = nextConnection();
+            }
+        }
+        return Arrays.asList(assigned);
+    }
+
+    private Connection nextConnection() {
+        return connections.get(nextConnection++ % connections.size());
+    }
 
-            addSubscription(subjectJoiner.toString(), queueGroupValue, method, targetFactory::get);
-            log.info(" Method: " + method.getName() + ", Subject: " + subjectJoiner.toString());
+    private static GeneratedRouter createGeneratedRouter(Class<?> clazz) {
+        Class<?> generated = GeneratedCode.find(clazz, GeneratedRouter.GENERATED_SUFFIX);
+        if (generated == null) {
+            return null;
+        }
+        try {
+            return (GeneratedRouter) generated.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RouterConfigurationException("Could not instantiate " + generated.getName(), e);
         }
     }
 
     public void register(final Object object) {
-        doRegister(object.getClass(), () -> object);
+        doRegister(object, object.getClass(), () -> object);
     }
 
+    // the resource's @Scope decides how instances are shared, without it every message gets a new instance
     public void register(final Class<?> clazz) {
-        doRegister(clazz, () -> clazz.newInstance());
+        Scope scope = clazz.getAnnotation(Scope.class);
+        register(clazz, scope != null ? scope.value() : ResourceScope.PER_MESSAGE);
+    }
+
+    public void register(final Class<?> clazz, ResourceScope resourceScope) {
+        Scope scope = clazz.getAnnotation(Scope.class);
+        int poolSize = scope != null && scope.poolSize() > 0 ? scope.poolSize() : dispatchers.workerThreads();
+        doRegister(clazz, clazz, TargetFactories.create(clazz, resourceScope, poolSize));
+    }
+
+    // call once resources are registered: compiles the tagged plan variants of every known codec and primes the
+    // subject cache with the given subjects and the literal subscription subjects
+    public void warmUp(String... hotSubjects) {
+        for (String subject : hotSubjects) {
+            subjects.get(subject);
+        }
+        for (Registration registration : registrations) {
+            for (RoutedSubscription sub : registration.subscriptions) {
+                sub.plan.precompileTagged(codecs.getCodecs());
+                if (sub.subject.indexOf('*') < 0 && sub.subject.indexOf('>') < 0) {
+                    subjects.get(sub.subject);
+                }
+            }
+        }
+    }
+
+    // accepts the registered instance or class; in-flight messages of the resource still complete
+    public boolean unregister(Object resource) {
+        synchronized (registrationLock) {
+            boolean removed = false;
+            for (Registration registration : registrations) {
+                if (registration.resource == resource) {
+                    registrations.remove(registration);
+                    closeRegistration(registration);
+                    removed = true;
+                }
+            }
+            return removed;
+        }
+    }
+
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        for (Registration registration : registrations) {
+            for (RoutedSubscription sub : registration.subscriptions) {
+                depths.merge(sub.subject, sub.dispatcher.queueDepth(), Integer::sum);
+            }
+        }
+        return depths;
+    }
+
+    public Map<String, Long> getDroppedCounts() {
+        Map<String, Long> dropped = new HashMap<>();
+        for (Registration registration : registrations) {
+            for (RoutedSubscription sub : registration.subscriptions) {
+                dropped.merge(sub.subject, sub.dispatcher.droppedCount(), Long::sum);
+            }
+        }
+        return dropped;
     }
 
     @Override
     public void close() {
         unregisterAllAndClose();
-        if (shutdownHook != null) {
-            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        Thread hook = shutdownHook;
+        if (hook != null) {
             shutdownHook = null;
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                log.debug("JVM is already shutting down, cleanup task left in place");
+            }
         }
     }
 
@@ -194,17 +745,33 @@ public class Router implements AutoCloseable {
     }
 
     private void unregisterAllAndClose() {
-        try {
-            for (Subscription sub : subscriptions) {
-                if (sub.isValid()) {
-                    sub.unsubscribe();
-                }
+        synchronized (registrationLock) {
+            for (Registration registration : registrations) {
+                closeRegistration(registration);
             }
-            subscriptions.clear();
-        } catch (IOException e) {
-            log.error("Unsubscribe failed", e);
+            registrations.clear();
+            dispatchers.shutdown();
         }
+    }
 
+    private void closeRegistration(Registration registration) {
+        // coalesced routes share one subscription
+        Set<Subscription> unsubscribed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (RoutedSubscription sub : registration.subscriptions) {
+            try {
+                if (unsubscribed.add(sub.subscription) && sub.subscription.isValid()) {
+                    sub.subscription.unsubscribe();
+                }
+            } catch (IOException e) {
+                log.error("Unsubscribe failed", e);
+            }
+        }
+        for (RoutedSubscription sub : registration.subscriptions) {
+            if (sub.batch != null) {
+                sub.batch.flush();
+            }
+            sub.dispatcher.shutdown();
+        }
     }
 
     // code taken from: http://stackoverflow.com/questions/6593597/java-seek-a-method-with-specific-annotation-and-its-annotation-element
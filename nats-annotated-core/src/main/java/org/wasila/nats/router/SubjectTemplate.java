@@ -0,0 +1,93 @@
+/**
+ * (C) Copyright 2017 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
+final class SubjectTemplate {
+
+    private final String subscriptionSubject;
+    private final Map<String, Integer> paramIndexes;
+
+    private SubjectTemplate(String subscriptionSubject, Map<String, Integer> paramIndexes) {
+        this.subscriptionSubject = subscriptionSubject;
+        this.paramIndexes = paramIndexes;
+    }
+
+    static SubjectTemplate compile(String subject) {
+        Map<String, Integer> paramIndexes = new HashMap<>();
+        StringJoiner subscriptionSubject = new StringJoiner(".");
+
+        String[] segments = subject.split("\\.");
+        for (int index = 0; index < segments.length; index++) {
+            String s = segments[index];
+            if (s.startsWith("{") && s.endsWith("}")) {
+                paramIndexes.put(s.substring(1, s.length() - 1), index);
+                subscriptionSubject.add("*");
+            } else {
+                subscriptionSubject.add(s);
+            }
+        }
+        return new SubjectTemplate(subscriptionSubject.toString(), paramIndexes);
+    }
+
+    String getSubscriptionSubject() {
+        return subscriptionSubject;
+    }
+
+    int getParamIndex(String name) {
+        Integer index = paramIndexes.get(name);
+        return index != null ? index : -1;
+    }
+
+    // segmentIndexes must be sorted ascending; positions are the matching slots in args
+    static void extract(String subject, int[] segmentIndexes, int[] positions, Object[] args) {
+        int next = 0;
+        int segment = 0;
+        int start = 0;
+        int length = subject.length();
+        for (int i = 0; i <= length && next < segmentIndexes.length; i++) {
+            if (i == length || subject.charAt(i) == '.') {
+                if (segmentIndexes[next] == segment) {
+                    String value = subject.substring(start, i);
+                    do {
+                        args[positions[next++]] = value;
+                    } while (next < segmentIndexes.length && segmentIndexes[next] == segment);
+                }
+                segment++;
+                start = i + 1;
+            }
+        }
+    }
+
+    static boolean segmentEquals(String subject, int segmentIndex, String value) {
+        int start = 0;
+        for (int segment = 0; segment < segmentIndex; segment++) {
+            start = subject.indexOf('.', start) + 1;
+            if (start == 0) {
+                return false;
+            }
+        }
+        int end = subject.indexOf('.', start);
+        if (end < 0) {
+            end = subject.length();
+        }
+        return end - start == value.length() && subject.regionMatches(start, value, 0, value.length());
+    }
+
+}
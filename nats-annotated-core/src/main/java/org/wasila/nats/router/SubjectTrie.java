@@ -0,0 +1,101 @@
+/**
+ * (C) Copyright 2017 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import org.wasila.nats.internal.SubjectCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// matches concrete subjects against subscription patterns the way the NATS server does: '*' and {param}
+// match exactly one segment, a trailing '>' matches one or more
+final class SubjectTrie<T> {
+
+    private final Node<T> root = new Node<>();
+
+    private static final class Node<T> {
+        private final Map<String, Node<T>> literals = new HashMap<>();
+        private Node<T> wildcard;
+        private final List<T> tail = new ArrayList<>();
+        private final List<T> values = new ArrayList<>();
+    }
+
+    void insert(String pattern, T value) {
+        Node<T> node = root;
+        String[] segments = pattern.split("\\.");
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.equals(">")) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("'>' must be the last segment of " + pattern);
+                }
+                node.tail.add(value);
+                return;
+            }
+            if (segment.equals("*") || (segment.startsWith("{") && segment.endsWith("}"))) {
+                if (node.wildcard == null) {
+                    node.wildcard = new Node<>();
+                }
+                node = node.wildcard;
+            } else {
+                node = node.literals.computeIfAbsent(segment, s -> new Node<>());
+            }
+        }
+        node.values.add(value);
+    }
+
+    void match(String subject, Consumer<? super T> consumer) {
+        match(SubjectCache.split(subject), consumer);
+    }
+
+    void match(SubjectCache.Entry subject, Consumer<? super T> consumer) {
+        match(root, subject, 0, consumer);
+    }
+
+    List<T> match(String subject) {
+        List<T> matches = new ArrayList<>();
+        match(subject, matches::add);
+        return matches;
+    }
+
+    private static <T> void match(Node<T> node, SubjectCache.Entry subject, int segment, Consumer<? super T> consumer) {
+        if (segment == subject.segmentCount()) {
+            forEach(node.values, consumer);
+            return;
+        }
+        forEach(node.tail, consumer);
+
+        if (!node.literals.isEmpty()) {
+            Node<T> literal = node.literals.get(subject.segment(segment));
+            if (literal != null) {
+                match(literal, subject, segment + 1, consumer);
+            }
+        }
+        if (node.wildcard != null) {
+            match(node.wildcard, subject, segment + 1, consumer);
+        }
+    }
+
+    private static <T> void forEach(List<T> values, Consumer<? super T> consumer) {
+        for (int i = 0; i < values.size(); i++) {
+            consumer.accept(values.get(i));
+        }
+    }
+
+}
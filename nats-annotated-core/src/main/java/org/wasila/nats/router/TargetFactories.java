@@ -0,0 +1,139 @@
+/**
+ * (C) Copyright 2017 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wasila.nats.annotation.Reset;
+import org.wasila.nats.annotation.ResourceScope;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+final class TargetFactories {
+
+    private static final Logger log = LoggerFactory.getLogger(TargetFactories.class);
+
+    private TargetFactories() {
+    }
+
+    static TargetFactory create(Class<?> clazz, ResourceScope scope, int poolSize) {
+        switch (scope) {
+            case SINGLETON:
+                return singleton(clazz);
+            case THREAD:
+                return threadConfined(clazz);
+            case POOLED:
+                return pooled(clazz, poolSize, findResetHook(clazz));
+            default:
+                return clazz::newInstance;
+        }
+    }
+
+    private static TargetFactory singleton(Class<?> clazz) {
+        final Object instance = instantiate(clazz);
+        return () -> instance;
+    }
+
+    private static TargetFactory threadConfined(Class<?> clazz) {
+        final ThreadLocal<Object> instances = new ThreadLocal<>();
+        return new TargetFactory() {
+            @Override
+            public Object get() throws ReflectiveOperationException {
+                Object target = instances.get();
+                if (target == null) {
+                    target = clazz.newInstance();
+                    instances.set(target);
+                }
+                return target;
+            }
+
+            @Override
+            public boolean isThreadConfined() {
+                return true;
+            }
+        };
+    }
+
+    // at most poolSize instances exist; once all of them are checked out, get() blocks until one is released
+    private static TargetFactory pooled(Class<?> clazz, int poolSize, final MethodHandle resetHook) {
+        if (poolSize <= 0) {
+            throw new RouterConfigurationException("Pool size of " + clazz.getName() + " must be positive");
+        }
+        final BlockingQueue<Object> idle = new ArrayBlockingQueue<>(poolSize);
+        final Semaphore available = new Semaphore(poolSize);
+        return new TargetFactory() {
+            @Override
+            public Object get() throws ReflectiveOperationException, InterruptedException {
+                available.acquire();
+                try {
+                    Object target = idle.poll();
+                    return target != null ? target : clazz.newInstance();
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    available.release();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void release(Object target) {
+                try {
+                    if (resetHook != null) {
+                        resetHook.invoke(target);
+                    }
+                    idle.offer(target);
+                } catch (Throwable t) {
+                    log.error("Reset of " + clazz.getName() + " failed, instance discarded", t);
+                } finally {
+                    available.release();
+                }
+            }
+        };
+    }
+
+    private static MethodHandle findResetHook(Class<?> clazz) {
+        for (Class<?> klass = clazz; klass != Object.class; klass = klass.getSuperclass()) {
+            for (Method method : klass.getDeclaredMethods()) {
+                if (method.getAnnotation(Reset.class) == null) {
+                    continue;
+                }
+                if (method.getParameterCount() != 0) {
+                    throw InvocationPlan.configurationError(method, "reset hook must not take parameters");
+                }
+                try {
+                    method.setAccessible(true);
+                    return MethodHandles.lookup().unreflect(method);
+                } catch (IllegalAccessException e) {
+                    throw new RouterConfigurationException("Cannot access reset hook " + method.getName(), e);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Object instantiate(Class<?> clazz) {
+        try {
+            return clazz.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RouterConfigurationException("Could not instantiate " + clazz.getName(), e);
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+/**
+ * (C) Copyright 2017 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+interface TargetFactory {
+
+    Object get() throws ReflectiveOperationException, InterruptedException;
+
+    // called once the handler is done with a target obtained from get()
+    default void release(Object target) {
+    }
+
+    // targets bound to the calling thread, which a thread per message would never reuse
+    default boolean isThreadConfined() {
+        return false;
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.internal;
+
+import io.nats.client.Connection;
+import io.nats.client.ConnectionFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ConnectionCacheTest {
+
+    @Test
+    public void connectsMissingStripesConcurrently() throws Exception {
+        CyclicBarrier allConnecting = new CyclicBarrier(3);
+        ConnectionFactory factory = mock(ConnectionFactory.class);
+        when(factory.createConnection()).thenAnswer(invocation -> {
+            allConnecting.await(5, TimeUnit.SECONDS);
+            return mock(Connection.class);
+        });
+
+        Connection[] stripes = new ConnectionCache.Stripes().grow(3, factory);
+
+        assertThat(stripes.length, equalTo(3));
+    }
+
+    @Test
+    public void closesConnectedStripesWhenOneFails() throws Exception {
+        Connection connected = mock(Connection.class);
+        ConnectionFactory factory = mock(ConnectionFactory.class);
+        when(factory.createConnection()).thenReturn(connected).thenThrow(new IOException("refused"));
+        ConnectionCache.Stripes stripes = new ConnectionCache.Stripes();
+
+        try {
+            stripes.grow(2, factory);
+            fail("Grow should fail");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), equalTo("refused"));
+        }
+
+        verify(connected).close();
+        assertThat(stripes.grow(0, factory).length, equalTo(0));
+    }
+
+}
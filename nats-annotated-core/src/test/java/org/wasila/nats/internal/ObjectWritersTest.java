@@ -0,0 +1,80 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.internal;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class ObjectWritersTest {
+
+    private final ObjectWriter writer = new ObjectMapper().writer();
+
+    public static class Payload {
+        public String value;
+
+        Payload(String value) {
+            this.value = value;
+        }
+    }
+
+    @JsonSerialize(using = NestedSerializer.class)
+    public static class Nested {
+    }
+
+    public static class NestedSerializer extends StdSerializer<Nested> {
+        public NestedSerializer() {
+            super(Nested.class);
+        }
+
+        @Override
+        public void serialize(Nested value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeString(new String(ObjectWriters.writeValueAsBytes(new ObjectMapper().writer(), new Payload("inner"))));
+        }
+    }
+
+    @Test
+    public void reusesBufferWithoutSharingResults() throws IOException {
+        byte[] first = ObjectWriters.writeValueAsBytes(writer, new Payload("first"));
+        byte[] second = ObjectWriters.writeValueAsBytes(writer, new Payload("2"));
+
+        assertThat(new String(first), equalTo("{\"value\":\"first\"}"));
+        assertThat(new String(second), equalTo("{\"value\":\"2\"}"));
+    }
+
+    @Test
+    public void handlesLargeAndNestedPayloads() throws IOException {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            large.append('x');
+        }
+        byte[] bytes = ObjectWriters.writeValueAsBytes(writer, new Payload(large.toString()));
+        assertThat(bytes.length, equalTo(large.length() + 12));
+
+        assertThat(new String(ObjectWriters.writeValueAsBytes(writer, new Nested())),
+                equalTo("\"{\\\"value\\\":\\\"inner\\\"}\""));
+    }
+
+}
@@ -0,0 +1,80 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.internal;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+
+public class SubjectCacheTest {
+
+    @Test
+    public void splitsSubjectIntoSegments() {
+        SubjectCache.Entry entry = new SubjectCache(16).get("orders.eu.42");
+
+        assertThat(entry.segmentCount(), equalTo(3));
+        assertThat(entry.segment(0), equalTo("orders"));
+        assertThat(entry.segment(1), equalTo("eu"));
+        assertThat(entry.segment(2), equalTo("42"));
+    }
+
+    @Test
+    public void returnsCachedEntryForEqualSubject() {
+        SubjectCache cache = new SubjectCache(16);
+
+        SubjectCache.Entry first = cache.get(new String("orders.eu"));
+        SubjectCache.Entry second = cache.get(new String("orders.eu"));
+
+        assertThat(second, sameInstance(first));
+    }
+
+    @Test
+    public void staysBoundedByEvictingCollidingSubjects() {
+        SubjectCache cache = new SubjectCache(1);
+
+        SubjectCache.Entry first = cache.get("orders.eu");
+        cache.get("orders.us");
+
+        assertThat(cache.get("orders.eu"), not(sameInstance(first)));
+    }
+
+    @Test
+    public void findReturnsOnlyCachedEntries() {
+        SubjectCache cache = new SubjectCache(16);
+
+        assertThat(cache.find("orders.eu"), nullValue());
+        assertThat(cache.find("orders.eu"), nullValue());
+
+        SubjectCache.Entry entry = cache.get("orders.eu");
+        assertThat(cache.find(new String("orders.eu")), sameInstance(entry));
+    }
+
+    @Test
+    public void zeroCapacityDisablesCaching() {
+        SubjectCache cache = new SubjectCache(0);
+
+        assertThat(cache.isEnabled(), equalTo(false));
+        cache.get("orders.eu");
+        assertThat(cache.find("orders.eu"), nullValue());
+        assertThat(cache.get("orders.eu"), not(sameInstance(cache.get("orders.eu"))));
+        assertThat(cache.get("orders.eu").segment(1), equalTo("eu"));
+    }
+
+}
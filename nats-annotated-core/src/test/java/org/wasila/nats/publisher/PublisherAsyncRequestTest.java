@@ -0,0 +1,157 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.publisher;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.wasila.nats.annotation.Publish;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class PublisherAsyncRequestTest {
+
+    public static class TestDto {
+        public String testProperty;
+    }
+
+    public static class ResponseDto {
+        public String testProperty;
+    }
+
+    public interface AsyncPublisherInterface {
+        @Publish(subject = "my-subject")
+        CompletableFuture<ResponseDto> request(TestDto test);
+
+        @Publish(subject = "other-subject", timeout = 50)
+        CompletionStage<ResponseDto> requestWithTimeout(TestDto test);
+    }
+
+    public interface RawFuturePublisherInterface {
+        @Publish(subject = "my-subject")
+        @SuppressWarnings("rawtypes")
+        CompletableFuture request(TestDto test);
+    }
+
+    private Connection cn;
+
+    @Before
+    public void prepare() {
+        cn = mock(Connection.class);
+        when(cn.newInbox()).thenReturn("_INBOX.test");
+    }
+
+    @Test
+    public void completesRequestsFromSharedInbox() throws Exception {
+        AsyncPublisherInterface publisher = Publisher.builder().target(AsyncPublisherInterface.class, cn);
+
+        CompletableFuture<ResponseDto> first = publisher.request(new TestDto());
+        CompletableFuture<ResponseDto> second = publisher.request(new TestDto());
+
+        ArgumentCaptor<MessageHandler> handler = ArgumentCaptor.forClass(MessageHandler.class);
+        verify(cn, times(1)).subscribe(eq("_INBOX.test.*"), handler.capture());
+
+        ArgumentCaptor<String> replyTo = ArgumentCaptor.forClass(String.class);
+        verify(cn, times(2)).publish(eq("my-subject"), replyTo.capture(), any(byte[].class));
+        verify(cn, never()).request(anyString(), any(byte[].class), anyLong(), any(TimeUnit.class));
+
+        String firstReply = replyTo.getAllValues().get(0);
+        String secondReply = replyTo.getAllValues().get(1);
+        assertThat(firstReply.equals(secondReply), is(false));
+
+        handler.getValue().onMessage(new Message(secondReply, null, "{\"testProperty\":\"second\"}".getBytes()));
+        assertThat(first.isDone(), is(false));
+        assertThat(second.get().testProperty, equalTo("second"));
+
+        handler.getValue().onMessage(new Message(firstReply, null, "{\"testProperty\":\"first\"}".getBytes()));
+        assertThat(first.get().testProperty, equalTo("first"));
+    }
+
+    @Test
+    public void completesRequestsOnReplyExecutor() throws Exception {
+        List<Runnable> completions = new ArrayList<>();
+        AsyncPublisherInterface publisher = Publisher.builder().replyExecutor(completions::add)
+                .target(AsyncPublisherInterface.class, cn);
+
+        CompletableFuture<ResponseDto> response = publisher.request(new TestDto());
+
+        ArgumentCaptor<MessageHandler> handler = ArgumentCaptor.forClass(MessageHandler.class);
+        verify(cn).subscribe(eq("_INBOX.test.*"), handler.capture());
+        ArgumentCaptor<String> replyTo = ArgumentCaptor.forClass(String.class);
+        verify(cn).publish(eq("my-subject"), replyTo.capture(), any(byte[].class));
+
+        handler.getValue().onMessage(new Message(replyTo.getValue(), null, "{\"testProperty\":\"done\"}".getBytes()));
+        assertThat(response.isDone(), is(false));
+        assertThat(completions.size(), is(1));
+
+        completions.get(0).run();
+        assertThat(response.get().testProperty, equalTo("done"));
+    }
+
+    @Test
+    public void failsRequestWithoutReplyAfterTimeout() throws Exception {
+        AsyncPublisherInterface publisher = Publisher.builder().target(AsyncPublisherInterface.class, cn);
+
+        CompletableFuture<ResponseDto> response = publisher.requestWithTimeout(new TestDto()).toCompletableFuture();
+
+        try {
+            response.get(5, TimeUnit.SECONDS);
+            fail("Request should time out");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(TimeoutException.class));
+        }
+    }
+
+    @Test
+    public void failsFutureWhenRequestCannotBeSent() throws Exception {
+        IOException failure = new IOException("Connection closed");
+        doThrow(failure).when(cn).publish(eq("my-subject"), anyString(), any(byte[].class));
+        AsyncPublisherInterface publisher = Publisher.builder().target(AsyncPublisherInterface.class, cn);
+
+        CompletableFuture<ResponseDto> response = publisher.request(new TestDto());
+
+        try {
+            response.get();
+            fail("Request should fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), sameInstance(failure));
+        }
+    }
+
+    @Test(expected = PublisherConfigurationException.class)
+    public void rejectsFutureWithoutReplyType() throws IOException, TimeoutException {
+        Publisher.builder().target(RawFuturePublisherInterface.class, cn);
+    }
+
+}
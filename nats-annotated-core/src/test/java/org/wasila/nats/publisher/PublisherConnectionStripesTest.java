@@ -0,0 +1,109 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.publisher;
+
+import io.nats.client.Connection;
+import org.junit.Before;
+import org.junit.Test;
+import org.wasila.nats.annotation.OrderingKey;
+import org.wasila.nats.annotation.Publish;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.mockito.Mockito.*;
+
+public class PublisherConnectionStripesTest {
+
+    public static class OrderDto {
+        public String account;
+
+        OrderDto(String account) {
+            this.account = account;
+        }
+    }
+
+    public interface OrderPublisher {
+        @Publish(subject = "orders")
+        void publish(OrderDto order);
+
+        @Publish(subject = "ledger")
+        void publishKeyed(@OrderingKey("account") OrderDto order);
+    }
+
+    private Connection first;
+    private Connection second;
+
+    @Before
+    public void prepare() {
+        first = mock(Connection.class);
+        second = mock(Connection.class);
+    }
+
+    @Test
+    public void spreadsPublishesRoundRobin() throws IOException, TimeoutException {
+        OrderPublisher publisher = Publisher.builder().target(OrderPublisher.class, Arrays.asList(first, second));
+
+        publisher.publish(new OrderDto("a"));
+        publisher.publish(new OrderDto("a"));
+        publisher.publish(new OrderDto("a"));
+
+        verify(first, times(2)).publish(eq("orders"), isNull(String.class), any(byte[].class));
+        verify(second, times(1)).publish(eq("orders"), isNull(String.class), any(byte[].class));
+    }
+
+    @Test
+    public void keepsOneKeyOnOneConnection() throws IOException, TimeoutException {
+        OrderPublisher publisher = Publisher.builder().connectionSelection(ConnectionSelection.KEY_AFFINITY)
+                .target(OrderPublisher.class, Arrays.asList(first, second));
+
+        publisher.publishKeyed(new OrderDto("account"));
+        publisher.publishKeyed(new OrderDto("account"));
+        publisher.publishKeyed(new OrderDto("account"));
+
+        assertThat(Math.max(publishes(first), publishes(second)), equalTo(3));
+        assertThat(Math.min(publishes(first), publishes(second)), equalTo(0));
+    }
+
+    @Test
+    public void keepsOneSubjectOnOneConnectionWithoutKey() throws IOException, TimeoutException {
+        OrderPublisher publisher = Publisher.builder().connectionSelection(ConnectionSelection.KEY_AFFINITY)
+                .target(OrderPublisher.class, Arrays.asList(first, second));
+
+        publisher.publish(new OrderDto("a"));
+        publisher.publish(new OrderDto("b"));
+
+        assertThat(Math.max(publishes(first), publishes(second)), equalTo(2));
+    }
+
+    private static int publishes(Connection connection) {
+        return mockingDetails(connection).getInvocations().size();
+    }
+
+    @Test(expected = PublisherConfigurationException.class)
+    public void rejectsUnknownKeyProperty() throws IOException, TimeoutException {
+        Publisher.builder().target(BrokenPublisher.class, first);
+    }
+
+    public interface BrokenPublisher {
+        @Publish(subject = "ledger")
+        void publish(@OrderingKey("missing") OrderDto order);
+    }
+
+}
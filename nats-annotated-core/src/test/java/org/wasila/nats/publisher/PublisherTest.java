@@ -18,20 +18,30 @@ package org.wasila.nats.publisher;
 import io.nats.client.Connection;
 import io.nats.client.ConnectionFactory;
 import io.nats.client.Message;
+import io.nats.client.MessageHandler;
 import org.junit.Before;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import org.junit.Test;
-import org.mockito.Matchers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.wasila.nats.annotation.Batch;
+import org.wasila.nats.annotation.Encoding;
 import org.wasila.nats.annotation.Publish;
 import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.codec.Codecs;
+import org.wasila.nats.codec.JacksonCodec;
 
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.hamcrest.core.IsNull.notNullValue;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 
 public class PublisherTest {
@@ -100,20 +110,39 @@ public class PublisherTest {
 
     @Test
     public void createSimplePublisherReturningValue() throws IOException, TimeoutException {
+        when(cn.newInbox()).thenReturn("_INBOX.test");
 
         PublisherInterfaceWithResponse publisher = Publisher.builder().target(PublisherInterfaceWithResponse.class, cn);
 
-        when(cn.request(eq("my-subject"), Matchers.<byte[]>any(), anyInt(), any(TimeUnit.class))).thenReturn(msg);
+        ArgumentCaptor<MessageHandler> handler = ArgumentCaptor.forClass(MessageHandler.class);
+        verify(cn).subscribe(eq("_INBOX.test.*"), handler.capture());
+
+        doAnswer(invocation -> {
+            handler.getValue().onMessage(new Message((String) invocation.getArguments()[1], null, MESSAGE_BODY_JSON));
+            return null;
+        }).when(cn).publish(eq("my-subject"), anyString(), any(byte[].class));
 
         ResponseDto response = publisher.publishMe(new TestDto());
 
-        verify(cn).request(eq("my-subject"), any(byte[].class), anyInt(), any(TimeUnit.class));
+        verify(cn).newInbox();
+        verify(cn).publish(eq("my-subject"), startsWith("_INBOX.test."), any(byte[].class));
         verifyNoMoreInteractions(cn);
 
         assertThat(response, is(notNullValue()));
         assertThat(response.testProperty, equalTo("propertyValue"));
     }
 
+    @Test
+    public void sharesReplyInboxBetweenPublishersOfConnection() throws IOException, TimeoutException {
+        when(cn.newInbox()).thenReturn("_INBOX.test");
+
+        Publisher.builder().target(PublisherInterfaceWithResponse.class, cn);
+        Publisher.builder().target(PublisherInterfaceWithResponse.class, cn);
+
+        verify(cn, times(1)).newInbox();
+        verify(cn, times(1)).subscribe(eq("_INBOX.test.*"), any(MessageHandler.class));
+    }
+
     @Subject("base-subject")
     public interface PublisherInterfaceWithComposedSubject {
         @Publish(subject = "my-subject")
@@ -131,6 +160,103 @@ public class PublisherTest {
         verifyNoMoreInteractions(cn);
     }
 
+    @Test
+    public void createPublisherWithCustomObjectMapper() throws IOException, TimeoutException {
+        ObjectMapper mapper = new ObjectMapper().setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
+
+        PublisherInterface publisher = Publisher.builder().objectMapper(mapper).target(PublisherInterface.class, cn);
+
+        TestDto dto = new TestDto();
+        dto.testProperty = "value";
+        publisher.publishMe(dto);
+        publisher.publishMe(dto);
+
+        ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        verify(cn, times(2)).publish(eq("my-subject"), isNull(String.class), body.capture());
+        verifyNoMoreInteractions(cn);
+
+        assertThat(new String(body.getValue()), equalTo("{\"test_property\":\"value\"}"));
+    }
+
+    @Encoding("snake")
+    public interface EncodedPublisherInterface {
+        @Publish(subject = "my-subject")
+        void publishMe(TestDto test);
+    }
+
+    @Test
+    public void createPublisherWithEncodingFromInterface() throws IOException, TimeoutException {
+        JacksonCodec snakeCase = new JacksonCodec("snake",
+                new ObjectMapper().setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE));
+
+        EncodedPublisherInterface publisher = Publisher.builder().codecs(snakeCase).target(EncodedPublisherInterface.class, cn);
+
+        TestDto dto = new TestDto();
+        dto.testProperty = "value";
+        publisher.publishMe(dto);
+
+        verify(cn).publish(eq("my-subject"), isNull(String.class), aryEq("{\"test_property\":\"value\"}".getBytes()));
+        verifyNoMoreInteractions(cn);
+    }
+
+    @Test
+    public void createPublisherWithTaggedPayloads() throws IOException, TimeoutException {
+        PublisherInterface publisher = Publisher.builder().tagPayloads(true).target(PublisherInterface.class, cn);
+
+        TestDto dto = new TestDto();
+        dto.testProperty = "value";
+        publisher.publishMe(dto);
+
+        byte[] json = "{\"testProperty\":\"value\"}".getBytes();
+        byte[] tagged = new byte[json.length + 1];
+        tagged[0] = Codecs.tagFor(Codecs.JSON);
+        System.arraycopy(json, 0, tagged, 1, json.length);
+        verify(cn).publish(eq("my-subject"), isNull(String.class), aryEq(tagged));
+        verifyNoMoreInteractions(cn);
+    }
+
+    public interface BatchPublisherInterface {
+        @Publish(subject = "my-subject")
+        @Batch
+        void publishAll(List<TestDto> tests);
+    }
+
+    @Test
+    public void publishesCollectionElementsWithSingleFlushPerCall() throws IOException, TimeoutException {
+        BatchPublisherInterface publisher = Publisher.builder().target(BatchPublisherInterface.class, cn);
+
+        TestDto dto = new TestDto();
+        dto.testProperty = "value";
+        publisher.publishAll(Arrays.asList(dto, dto, dto));
+
+        InOrder inOrder = inOrder(cn);
+        inOrder.verify(cn, times(2)).publish(eq("my-subject"), isNull(String.class), aryEq("{\"testProperty\":\"value\"}".getBytes()), eq(false));
+        inOrder.verify(cn).publish(eq("my-subject"), isNull(String.class), aryEq("{\"testProperty\":\"value\"}".getBytes()), eq(true));
+        verifyNoMoreInteractions(cn);
+    }
+
+    public interface FaultyBatchPublisherInterface {
+        @Publish(subject = "my-subject")
+        @Batch
+        void publishAll(TestDto test);
+    }
+
+    @Test(expected=PublisherConfigurationException.class)
+    public void createBatchPublisherWithoutCollectionParameter() throws IOException, TimeoutException {
+        Publisher.builder().target(FaultyBatchPublisherInterface.class, cn);
+    }
+
+    public interface SizedBatchPublisherInterface {
+        @Publish(subject = "my-subject")
+        @Batch(size = 2, linger = 10)
+        void publishAll(List<TestDto> tests);
+    }
+
+    @Test(expected=PublisherConfigurationException.class)
+    public void createBatchPublisherWithSizeOrLinger() throws IOException, TimeoutException {
+        Publisher.builder().target(SizedBatchPublisherInterface.class, cn);
+    }
+
     public interface FaultyPublisherInterface {
         void publishMe(TestDto test);
     }
@@ -0,0 +1,54 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.publisher;
+
+import org.junit.Test;
+import org.wasila.nats.internal.NamedThreadFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TimeoutWheelTest {
+
+    private final TimeoutWheel wheel = new TimeoutWheel(1, TimeUnit.MILLISECONDS, 8,
+            new NamedThreadFactory("timeout-wheel-test"));
+
+    @Test
+    public void runsTaskOnceDue() throws InterruptedException {
+        CountDownLatch expired = new CountDownLatch(1);
+
+        wheel.schedule(expired::countDown, 20, TimeUnit.MILLISECONDS);
+
+        assertThat(expired.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void skipsCancelledTask() throws InterruptedException {
+        AtomicBoolean cancelledRan = new AtomicBoolean();
+        CountDownLatch later = new CountDownLatch(1);
+
+        wheel.schedule(() -> cancelledRan.set(true), 10, TimeUnit.MILLISECONDS).cancel();
+        wheel.schedule(later::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertThat(later.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(cancelledRan.get(), is(false));
+    }
+
+}
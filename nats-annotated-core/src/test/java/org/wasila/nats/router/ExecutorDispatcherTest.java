@@ -0,0 +1,112 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wasila.nats.annotation.OverflowPolicy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class ExecutorDispatcherTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void releaseHandlers() {
+        release.countDown();
+    }
+
+    @Test
+    public void dropOldestDoesNotQueueDrainsForReplacedMessages() throws InterruptedException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        Dispatchers.ExecutorDispatcher dispatcher = new Dispatchers.ExecutorDispatcher(executor, true, false, 2,
+                OverflowPolicy.DROP_OLDEST, msg -> { });
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+
+        dispatcher.dispatch(null, null, () -> {
+            started.countDown();
+            awaitRelease();
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        for (int i = 0; i < 10000; i++) {
+            dispatcher.dispatch(null, null, handled::incrementAndGet);
+        }
+
+        assertThat(dispatcher.queueDepth(), equalTo(2));
+        assertThat(dispatcher.droppedCount(), equalTo(9998L));
+        assertThat(executor.getQueue().size(), equalTo(2));
+
+        release.countDown();
+        dispatcher.shutdown();
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS), is(true));
+        assertThat(handled.get(), equalTo(2));
+    }
+
+    @Test
+    public void threadPerTaskExecutorRunsAtMostCapacityHandlers() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Dispatchers.ExecutorDispatcher dispatcher = new Dispatchers.ExecutorDispatcher(executor, true, true, 2,
+                OverflowPolicy.DROP_NEWEST, msg -> { });
+        CountDownLatch started = new CountDownLatch(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger handled = new AtomicInteger();
+        Runnable handler = () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            started.countDown();
+            awaitRelease();
+            running.decrementAndGet();
+            handled.incrementAndGet();
+        };
+
+        dispatcher.dispatch(null, null, handler);
+        dispatcher.dispatch(null, null, handler);
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        for (int i = 0; i < 8; i++) {
+            dispatcher.dispatch(null, null, handler);
+        }
+
+        assertThat(dispatcher.queueDepth(), equalTo(2));
+        assertThat(dispatcher.droppedCount(), equalTo(6L));
+
+        release.countDown();
+        dispatcher.shutdown();
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS), is(true));
+        assertThat(handled.get(), equalTo(4));
+        assertThat(maxRunning.get(), equalTo(2));
+    }
+
+    private void awaitRelease() {
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
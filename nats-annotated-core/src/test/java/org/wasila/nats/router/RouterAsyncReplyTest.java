@@ -0,0 +1,141 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.Message;
+import org.junit.Test;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeoutException;
+
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class RouterAsyncReplyTest extends TestBase {
+
+    private static final String REPLY_SUBJECT = "reply-inbox";
+
+    private final CompletableFuture<ResponseDto> pending = new CompletableFuture<>();
+
+    public class SyncResource {
+        @Subscribe
+        @Subject("test-subject")
+        public ResponseDto handle(DataDto dto) {
+            return response(dto.data);
+        }
+    }
+
+    public class AsyncResource {
+        @Subscribe
+        @Subject("test-subject")
+        public CompletionStage<ResponseDto> handle(DataDto dto) {
+            return pending;
+        }
+    }
+
+    public class FailingResource {
+        @Subscribe
+        @Subject("test-subject")
+        public ResponseDto handle(DataDto dto) {
+            throw new IllegalArgumentException("invalid");
+        }
+    }
+
+    @Test
+    public void publishesSynchronousReply() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new SyncResource());
+
+        currentHandler.onMessage(request());
+
+        router.close();
+
+        verify(cn).publish(eq(REPLY_SUBJECT), aryEq("{\"responseCode\":null,\"response\":\"value\"}".getBytes()));
+    }
+
+    @Test
+    public void publishesAsynchronousReplyOnCompletion() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new AsyncResource());
+
+        currentHandler.onMessage(request());
+
+        verify(cn, never()).publish(anyString(), any(byte[].class));
+
+        pending.complete(response("async"));
+        router.close();
+
+        verify(cn).publish(eq(REPLY_SUBJECT), aryEq("{\"responseCode\":null,\"response\":\"async\"}".getBytes()));
+    }
+
+    @Test
+    public void mapsAsynchronousFailureToReply() throws IOException, TimeoutException {
+        Router router = Router.builder().errorMapper(error -> response(error.getMessage())).build(cn);
+        router.register(new AsyncResource());
+
+        currentHandler.onMessage(request());
+        pending.completeExceptionally(new IllegalStateException("failed"));
+
+        router.close();
+
+        verify(cn).publish(eq(REPLY_SUBJECT), aryEq("{\"responseCode\":null,\"response\":\"failed\"}".getBytes()));
+    }
+
+    @Test
+    public void mapsSynchronousFailureToReply() throws IOException, TimeoutException {
+        Router router = Router.builder().errorMapper(error -> response(error.getMessage())).build(cn);
+        router.register(new FailingResource());
+
+        currentHandler.onMessage(request());
+
+        router.close();
+
+        verify(cn).publish(eq(REPLY_SUBJECT), aryEq("{\"responseCode\":null,\"response\":\"invalid\"}".getBytes()));
+    }
+
+    @Test
+    public void skipsFailureReplyWithoutErrorMapper() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new AsyncResource());
+
+        currentHandler.onMessage(request());
+        pending.completeExceptionally(new IllegalStateException("failed"));
+
+        router.close();
+
+        verify(cn, never()).publish(anyString(), any(byte[].class));
+    }
+
+    private static Message request() {
+        return new Message("test-subject", REPLY_SUBJECT, sampleDataDtoJson.getBytes());
+    }
+
+    private static ResponseDto response(String value) {
+        ResponseDto response = new ResponseDto();
+        response.response = value;
+        return response;
+    }
+
+}
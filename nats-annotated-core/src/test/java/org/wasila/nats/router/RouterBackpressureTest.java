@@ -0,0 +1,164 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.Message;
+import org.junit.Test;
+import org.wasila.nats.annotation.DispatchMode;
+import org.wasila.nats.annotation.OverflowPolicy;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.verify;
+
+public class RouterBackpressureTest extends TestBase {
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> handled = Collections.synchronizedList(new ArrayList<>());
+
+    public class SlowResource {
+        @Subscribe(dispatch = DispatchMode.SUBSCRIPTION_POOL, queueCapacity = 2, overflow = OverflowPolicy.DROP_NEWEST)
+        @Subject("test-subject")
+        public void dropNewest(DataDto dto) throws InterruptedException {
+            slowHandle(dto);
+        }
+    }
+
+    public class DropOldestResource {
+        @Subscribe(dispatch = DispatchMode.SUBSCRIPTION_POOL, queueCapacity = 2, overflow = OverflowPolicy.DROP_OLDEST)
+        @Subject("test-subject")
+        public void dropOldest(DataDto dto) throws InterruptedException {
+            slowHandle(dto);
+        }
+    }
+
+    public class DeadLetterResource {
+        @Subscribe(dispatch = DispatchMode.SUBSCRIPTION_POOL, queueCapacity = 1,
+                overflow = OverflowPolicy.DEAD_LETTER, deadLetterSubject = "test-subject.dead")
+        @Subject("test-subject")
+        public void deadLetter(DataDto dto) throws InterruptedException {
+            slowHandle(dto);
+        }
+    }
+
+    public class MissingDeadLetterSubjectResource {
+        @Subscribe(dispatch = DispatchMode.WORKER_POOL, overflow = OverflowPolicy.DEAD_LETTER)
+        @Subject("test-subject")
+        public void deadLetter(DataDto dto) {
+        }
+    }
+
+    private void slowHandle(DataDto dto) throws InterruptedException {
+        started.countDown();
+        release.await(5, TimeUnit.SECONDS);
+        handled.add(dto.data);
+    }
+
+    @Test
+    public void dropNewestKeepsQueuedMessages() throws IOException, TimeoutException, InterruptedException {
+        Router router = new Router(cn);
+        router.register(new SlowResource());
+
+        deliver("0");
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        deliver("1", "2", "3", "4");
+
+        assertThat(router.getQueueDepths().get("test-subject"), equalTo(2));
+        assertThat(router.getDroppedCounts().get("test-subject"), equalTo(2L));
+
+        release.countDown();
+        awaitHandled(3);
+        router.close();
+
+        assertThat(handled, equalTo(Arrays.asList("0", "1", "2")));
+    }
+
+    @Test
+    public void dropOldestKeepsLatestMessages() throws IOException, TimeoutException, InterruptedException {
+        Router router = new Router(cn);
+        router.register(new DropOldestResource());
+
+        deliver("0");
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        deliver("1", "2", "3", "4");
+
+        assertThat(router.getQueueDepths().get("test-subject"), equalTo(2));
+        assertThat(router.getDroppedCounts().get("test-subject"), equalTo(2L));
+
+        release.countDown();
+        awaitHandled(3);
+        router.close();
+
+        assertThat(handled, equalTo(Arrays.asList("0", "3", "4")));
+    }
+
+    @Test
+    public void deadLetterPublishesRejectedMessages() throws IOException, TimeoutException, InterruptedException {
+        Router router = new Router(cn);
+        router.register(new DeadLetterResource());
+
+        deliver("0");
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        deliver("1", "2", "3");
+
+        assertThat(router.getDroppedCounts().get("test-subject"), equalTo(2L));
+
+        release.countDown();
+        awaitHandled(2);
+        router.close();
+
+        verify(cn).publish(eq("test-subject.dead"), isNull(String.class), aryEq("{\"data\":\"2\"}".getBytes()));
+        verify(cn).publish(eq("test-subject.dead"), isNull(String.class), aryEq("{\"data\":\"3\"}".getBytes()));
+        assertThat(handled, equalTo(Arrays.asList("0", "1")));
+    }
+
+    @Test(expected = RouterConfigurationException.class)
+    public void deadLetterPolicyRequiresSubject() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new MissingDeadLetterSubjectResource());
+    }
+
+    private void deliver(String... values) {
+        for (String value : values) {
+            currentHandler.onMessage(new Message("test-subject", null, ("{\"data\":\"" + value + "\"}").getBytes()));
+        }
+    }
+
+    private void awaitHandled(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handled.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+}
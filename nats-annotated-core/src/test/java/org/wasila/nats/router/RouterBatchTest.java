@@ -0,0 +1,158 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import org.junit.Test;
+import org.wasila.nats.annotation.Batch;
+import org.wasila.nats.annotation.ConnectionContext;
+import org.wasila.nats.annotation.MessageContext;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.StringStartsWith.startsWith;
+import static org.hamcrest.core.IsSame.sameInstance;
+
+public class RouterBatchTest extends TestBase {
+
+    private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+
+    private final CountDownLatch flushed = new CountDownLatch(1);
+
+    private volatile String flushThread;
+
+    public class ListBatchResource {
+        @Subscribe
+        @Subject("test-subject")
+        @Batch(size = 3)
+        public void handle(List<DataDto> dtos, @ConnectionContext Connection connection) {
+            assertThat(connection, sameInstance(cn));
+            batches.add(dtos.stream().map(dto -> dto.data).collect(Collectors.toList()));
+        }
+    }
+
+    public class ArrayBatchResource {
+        @Subscribe
+        @Subject("test-subject")
+        @Batch(size = 2)
+        public void handle(DataDto[] dtos) {
+            batches.add(Arrays.stream(dtos).map(dto -> dto.data).collect(Collectors.toList()));
+        }
+    }
+
+    public class LingerBatchResource {
+        @Subscribe
+        @Subject("test-subject")
+        @Batch(size = 100, linger = 20)
+        public void handle(List<DataDto> dtos) {
+            batches.add(dtos.stream().map(dto -> dto.data).collect(Collectors.toList()));
+            flushThread = Thread.currentThread().getName();
+            flushed.countDown();
+        }
+    }
+
+    public class ZeroSizeBatchResource {
+        @Subscribe
+        @Subject("test-subject")
+        @Batch(size = 0)
+        public void handle(List<DataDto> dtos) {
+        }
+    }
+
+    public class InvalidBatchResource {
+        @Subscribe
+        @Subject("test-subject")
+        @Batch
+        public void handle(List<DataDto> dtos, @MessageContext Message message) {
+        }
+    }
+
+    @Test
+    public void invokesHandlerOncePerFullBatchAndFlushesRestOnClose() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new ListBatchResource());
+
+        deliver("0", "1", "2", "3", "4", "5", "6");
+
+        assertThat(batches.size(), equalTo(2));
+
+        router.close();
+
+        assertThat(batches, equalTo(Arrays.asList(
+                Arrays.asList("0", "1", "2"), Arrays.asList("3", "4", "5"), Collections.singletonList("6"))));
+    }
+
+    @Test
+    public void supportsArrayBatchParameter() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new ArrayBatchResource());
+
+        deliver("0", "1", "2", "3");
+
+        router.close();
+
+        assertThat(batches, equalTo(Arrays.asList(Arrays.asList("0", "1"), Arrays.asList("2", "3"))));
+    }
+
+    @Test
+    public void flushesIncompleteBatchAfterLingerTime() throws IOException, TimeoutException, InterruptedException {
+        Router router = new Router(cn);
+        router.register(new LingerBatchResource());
+
+        deliver("0", "1");
+
+        assertThat(flushed.await(5, TimeUnit.SECONDS), is(true));
+        router.close();
+
+        assertThat(batches, equalTo(Collections.singletonList(Arrays.asList("0", "1"))));
+        assertThat(flushThread, not(startsWith("nats-router-timer")));
+    }
+
+    @Test(expected = RouterConfigurationException.class)
+    public void rejectsNonPositiveBatchSize() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new ZeroSizeBatchResource());
+    }
+
+    @Test(expected = RouterConfigurationException.class)
+    public void rejectsPerMessageParametersInBatchHandler() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new InvalidBatchResource());
+    }
+
+    private void deliver(String... values) {
+        for (String value : values) {
+            currentHandler.onMessage(new Message("test-subject", null, ("{\"data\":\"" + value + "\"}").getBytes()));
+        }
+    }
+
+}
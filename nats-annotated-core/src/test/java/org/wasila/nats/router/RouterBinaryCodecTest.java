@@ -0,0 +1,123 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.wasila.nats.annotation.Encoding;
+import org.wasila.nats.annotation.Publish;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.codec.Codecs;
+import org.wasila.nats.publisher.Publisher;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNot.not;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RouterBinaryCodecTest extends TestBase {
+
+    public class EchoResource {
+        @Subscribe
+        @Subject("codec-subject")
+        public ResponseDto handle(ResponseDto request) {
+            ResponseDto response = new ResponseDto();
+            response.responseCode = request.responseCode;
+            response.response = "echo " + request.response;
+            return response;
+        }
+    }
+
+    @Encoding(Codecs.SMILE)
+    public class SmileResource extends EchoResource {
+    }
+
+    @Encoding(Codecs.CBOR)
+    public class CborResource extends EchoResource {
+    }
+
+    public interface EchoPublisher {
+        @Publish(subject = "codec-subject")
+        ResponseDto request(ResponseDto request);
+    }
+
+    @Encoding(Codecs.SMILE)
+    public interface SmilePublisher extends EchoPublisher {
+    }
+
+    @Encoding(Codecs.CBOR)
+    public interface CborPublisher extends EchoPublisher {
+    }
+
+    @Test
+    public void roundTripsSmileBetweenPublisherAndRouter() throws IOException, TimeoutException {
+        assertRoundTrip(new SmileResource(), SmilePublisher.class);
+    }
+
+    @Test
+    public void roundTripsCborBetweenPublisherAndRouter() throws IOException, TimeoutException {
+        assertRoundTrip(new CborResource(), CborPublisher.class);
+    }
+
+    private void assertRoundTrip(EchoResource resource, Class<? extends EchoPublisher> publisherType)
+            throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(resource);
+
+        Connection publisherConnection = mock(Connection.class);
+        when(publisherConnection.newInbox()).thenReturn("_INBOX.test");
+        EchoPublisher publisher = Publisher.builder().target(publisherType, publisherConnection);
+        ArgumentCaptor<MessageHandler> inbox = ArgumentCaptor.forClass(MessageHandler.class);
+        verify(publisherConnection).subscribe(eq("_INBOX.test.*"), inbox.capture());
+
+        ArgumentCaptor<byte[]> request = ArgumentCaptor.forClass(byte[].class);
+        doAnswer(invocation -> {
+            currentHandler.onMessage(new Message("codec-subject", (String) invocation.getArguments()[1],
+                    (byte[]) invocation.getArguments()[2]));
+            return null;
+        }).when(publisherConnection).publish(eq("codec-subject"), anyString(), request.capture());
+        doAnswer(invocation -> {
+            inbox.getValue().onMessage(new Message((String) invocation.getArguments()[0], null,
+                    (byte[]) invocation.getArguments()[1]));
+            return null;
+        }).when(cn).publish(anyString(), any(byte[].class));
+
+        ResponseDto dto = new ResponseDto();
+        dto.responseCode = "200";
+        dto.response = "binary";
+        ResponseDto response = publisher.request(dto);
+
+        assertThat(request.getValue()[0], not(equalTo((byte) '{')));
+        assertThat(response.responseCode, equalTo("200"));
+        assertThat(response.response, equalTo("echo binary"));
+        router.close();
+    }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import org.junit.Test;
+import org.wasila.nats.annotation.QueueGroup;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.SubjectParam;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.isNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class RouterCoalescedSubscriptionTest extends TestBase {
+
+    private final List<String> received = new ArrayList<>();
+
+    @Subject("orders")
+    public class OrdersResource {
+        @Subscribe
+        @Subject("created")
+        public void created(DataDto data) {
+            received.add("created:" + data.data);
+        }
+
+        @Subscribe
+        @Subject("{region}.shipped")
+        public void shipped(@SubjectParam("region") String region) {
+            received.add("shipped:" + region);
+        }
+
+        @Subscribe
+        @Subject("{region}.>")
+        public void audit(@SubjectParam("region") String region) {
+            received.add("audit:" + region);
+        }
+    }
+
+    @Subject("orders")
+    public class QueueGroupResource {
+        @Subscribe
+        @Subject("created")
+        @QueueGroup("workers")
+        public void created(DataDto data) {
+        }
+
+        @Subscribe
+        @Subject("shipped")
+        @QueueGroup("workers")
+        public void shipped(DataDto data) {
+        }
+
+        @Subscribe
+        @Subject("cancelled")
+        public void cancelled(DataDto data) {
+        }
+    }
+
+    @Test
+    public void subscribesOnceAndRoutesLocally() throws IOException, TimeoutException {
+        Router router = Router.builder().coalesceSubscriptions(true).build(cn);
+        router.register(new OrdersResource());
+
+        verify(cn, times(1)).subscribe(any(String.class), any(String.class), any(MessageHandler.class));
+        verify(cn).subscribe(eq("orders.>"), isNull(String.class), any(MessageHandler.class));
+
+        currentHandler.onMessage(new Message("orders.created", null, sampleDataDtoJson.getBytes()));
+        currentHandler.onMessage(new Message("orders.eu.shipped", null, new byte[0]));
+        currentHandler.onMessage(new Message("orders.unknown", null, new byte[0]));
+
+        router.close();
+
+        verify(sub, times(1)).unsubscribe();
+        assertThat(received.toString(),
+                equalTo("[created:value, audit:eu, shipped:eu]"));
+    }
+
+    @Test
+    public void coalescesPerQueueGroup() throws IOException, TimeoutException {
+        Router router = Router.builder().coalesceSubscriptions(true).build(cn);
+        router.register(new QueueGroupResource());
+
+        verify(cn).subscribe(eq("orders.>"), eq("workers"), any(MessageHandler.class));
+        verify(cn).subscribe(eq("orders.cancelled"), isNull(String.class), any(MessageHandler.class));
+
+        router.close();
+    }
+
+    @Test
+    public void keepsSeparateSubscriptionsByDefault() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new OrdersResource());
+
+        verify(cn, times(3)).subscribe(any(String.class), any(String.class), any(MessageHandler.class));
+
+        router.close();
+    }
+
+}
@@ -0,0 +1,262 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import io.nats.client.Message;
+import org.junit.Test;
+import org.wasila.nats.annotation.Encoding;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.codec.CodecNotFoundException;
+import org.wasila.nats.codec.Codecs;
+import org.wasila.nats.codec.Decoder;
+import org.wasila.nats.codec.JacksonCodec;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class RouterCodecTest extends TestBase {
+
+    private static final JacksonCodec SNAKE_CASE = new JacksonCodec("snake",
+            new ObjectMapper().setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE));
+
+    private static final JacksonCodec TAGGED_SNAKE_CASE = new JacksonCodec("tagged-snake",
+            new ObjectMapper().setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)) {
+        @Override
+        public byte tag() {
+            return 0x10;
+        }
+    };
+
+    private static final JacksonCodec UNBINDABLE = new JacksonCodec("unbindable", new ObjectMapper()) {
+        @Override
+        public byte tag() {
+            return 0x12;
+        }
+
+        @Override
+        public Decoder decoder(Type type) {
+            throw new IllegalArgumentException("Cannot decode " + type);
+        }
+    };
+
+    public class DefaultResource {
+        @Subscribe
+        @Subject("test-subject")
+        public ResponseDto handle(ResponseDto request) {
+            return request;
+        }
+    }
+
+    @Encoding("snake")
+    public class SnakeCaseResource {
+        @Subscribe
+        @Subject("test-subject")
+        public ResponseDto handle(ResponseDto request) {
+            return request;
+        }
+    }
+
+    public class MethodEncodingResource {
+        @Subscribe
+        @Subject("test-subject")
+        @Encoding("snake")
+        public ResponseDto handle(ResponseDto request) {
+            return request;
+        }
+    }
+
+    public static class RawResource {
+        static byte[] received;
+
+        @Subscribe
+        @Subject("test-subject")
+        public void handle(byte[] body) {
+            received = body;
+        }
+    }
+
+    public class UnknownEncodingResource {
+        @Subscribe
+        @Subject("test-subject")
+        @Encoding("unknown")
+        public void handle(ResponseDto request) {
+        }
+    }
+
+    @Test
+    public void usesDefaultCodecFromBuilder() throws IOException, TimeoutException {
+        Router router = Router.builder().codec(SNAKE_CASE).build(cn);
+        router.register(new DefaultResource());
+
+        assertRoundTrip("{\"response_code\":\"201\",\"response\":\"created\"}");
+        router.close();
+    }
+
+    @Test
+    public void selectsCodecFromResourceEncoding() throws IOException, TimeoutException {
+        Router router = Router.builder().codecs(SNAKE_CASE).build(cn);
+        router.register(new SnakeCaseResource());
+
+        assertRoundTrip("{\"response_code\":\"201\",\"response\":\"created\"}");
+        router.close();
+    }
+
+    @Test
+    public void selectsCodecFromMethodEncoding() throws IOException, TimeoutException {
+        Router router = Router.builder().codecs(SNAKE_CASE).build(cn);
+        router.register(new MethodEncodingResource());
+
+        assertRoundTrip("{\"response_code\":\"201\",\"response\":\"created\"}");
+        router.close();
+    }
+
+    @Test
+    public void keepsJsonByDefault() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new DefaultResource());
+
+        assertRoundTrip("{\"responseCode\":\"201\",\"response\":\"created\"}");
+        router.close();
+    }
+
+    @Test
+    public void answersTaggedRequestInRequesterFormat() throws IOException, TimeoutException {
+        Router router = Router.builder().codecs(TAGGED_SNAKE_CASE).negotiateCodecs(true).build(cn);
+        router.register(new DefaultResource());
+
+        byte[] snakeCase = tagged(0x10, "{\"response_code\":\"201\",\"response\":\"created\"}");
+        currentHandler.onMessage(new Message("test-subject", "snake-inbox", snakeCase));
+        byte[] json = tagged(Codecs.tagFor(Codecs.JSON), "{\"responseCode\":\"201\",\"response\":\"created\"}");
+        currentHandler.onMessage(new Message("test-subject", "json-inbox", json));
+
+        assertRoundTrip("{\"responseCode\":\"201\",\"response\":\"created\"}");
+        verify(cn).publish(eq("snake-inbox"), aryEq(snakeCase));
+        verify(cn).publish(eq("json-inbox"), aryEq(json));
+        router.close();
+    }
+
+    @Test
+    public void passesTaggedPayloadThroughWithoutNegotiation() throws IOException, TimeoutException {
+        Router router = Router.builder().codecs(TAGGED_SNAKE_CASE).build(cn);
+        router.register(new RawResource());
+
+        byte[] snakeCase = tagged(0x10, "{\"response_code\":\"201\"}");
+        currentHandler.onMessage(new Message("test-subject", "inbox", snakeCase));
+
+        assertThat(RawResource.received, equalTo(snakeCase));
+        router.close();
+    }
+
+    @Test
+    public void fallsBackToHandlerCodecWhenTaggedCodecCannotBind() throws IOException, TimeoutException {
+        Router router = Router.builder().codecs(UNBINDABLE).negotiateCodecs(true).build(cn);
+        router.register(new DefaultResource());
+
+        currentHandler.onMessage(new Message("test-subject", "inbox",
+                tagged(0x12, "{\"responseCode\":\"201\",\"response\":\"created\"}")));
+        verify(cn, never()).publish(eq("inbox"), any(byte[].class));
+
+        assertRoundTrip("{\"responseCode\":\"201\",\"response\":\"created\"}");
+        router.close();
+    }
+
+    @Test
+    public void warmUpCompilesTaggedPlansBeforeFirstMessage() throws IOException, TimeoutException {
+        final AtomicInteger decoders = new AtomicInteger();
+        JacksonCodec counting = new JacksonCodec("counting", new ObjectMapper()) {
+            @Override
+            public byte tag() {
+                return 0x11;
+            }
+
+            @Override
+            public Decoder decoder(Type type) {
+                decoders.incrementAndGet();
+                return super.decoder(type);
+            }
+        };
+        Router router = Router.builder().codecs(counting).negotiateCodecs(true).build(cn);
+        router.register(new DefaultResource());
+
+        router.warmUp("test-subject");
+        int compiled = decoders.get();
+        currentHandler.onMessage(new Message("test-subject", "inbox",
+                tagged(0x11, "{\"responseCode\":\"201\",\"response\":\"created\"}")));
+
+        assertThat(compiled > 0, is(true));
+        assertThat(decoders.get(), equalTo(compiled));
+        router.close();
+    }
+
+    @Test
+    public void warmUpSkipsCodecsThatCannotBindHandler() throws IOException, TimeoutException {
+        Router router = Router.builder().codecs(UNBINDABLE, TAGGED_SNAKE_CASE).negotiateCodecs(true).build(cn);
+        router.register(new DefaultResource());
+
+        router.warmUp("test-subject");
+
+        byte[] snakeCase = tagged(0x10, "{\"response_code\":\"201\",\"response\":\"created\"}");
+        currentHandler.onMessage(new Message("test-subject", "snake-inbox", snakeCase));
+        verify(cn).publish(eq("snake-inbox"), aryEq(snakeCase));
+        router.close();
+    }
+
+    @Test(expected = CodecNotFoundException.class)
+    public void rejectsUnknownEncoding() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        try {
+            router.register(new UnknownEncodingResource());
+        } finally {
+            router.close();
+        }
+    }
+
+    @Test
+    public void resolvesBuiltInCodecsByName() {
+        assertThat(Codecs.forName(Codecs.JSON), notNullValue());
+        assertThat(Codecs.forName("unknown"), nullValue());
+    }
+
+    private static byte[] tagged(int tag, String payload) {
+        byte[] data = new byte[payload.length() + 1];
+        data[0] = (byte) tag;
+        System.arraycopy(payload.getBytes(), 0, data, 1, payload.length());
+        return data;
+    }
+
+    private void assertRoundTrip(String payload) throws IOException {
+        currentHandler.onMessage(new Message("test-subject", "reply-inbox", payload.getBytes()));
+        verify(cn).publish(eq("reply-inbox"), aryEq(payload.getBytes()));
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.AsyncSubscription;
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeoutException;
+
+import static org.mockito.Mockito.*;
+
+public class RouterConnectionSpreadingTest extends TestBase {
+
+    public static class EchoResource {
+        @Subscribe
+        @Subject("first")
+        public DataDto first(DataDto data) {
+            return data;
+        }
+
+        @Subscribe
+        @Subject("second")
+        public DataDto second(DataDto data) {
+            return data;
+        }
+    }
+
+    public static class OrdersResource {
+        @Subscribe
+        @Subject("orders.created")
+        public DataDto created(DataDto data) {
+            return data;
+        }
+
+        @Subscribe
+        @Subject("orders.shipped")
+        public DataDto shipped(DataDto data) {
+            return data;
+        }
+    }
+
+    @Test
+    public void spreadsSubscriptionsAndRepliesOverConnections() throws IOException, TimeoutException {
+        Connection other = mock(Connection.class);
+        when(other.subscribe(any(), any(), any())).thenReturn(mock(AsyncSubscription.class));
+
+        Router router = Router.builder().build(Arrays.asList(cn, other));
+        router.register(EchoResource.class);
+
+        ArgumentCaptor<MessageHandler> otherHandler = ArgumentCaptor.forClass(MessageHandler.class);
+        verify(cn).subscribe(anyString(), isNull(String.class), isA(MessageHandler.class));
+        verify(other).subscribe(anyString(), isNull(String.class), otherHandler.capture());
+
+        currentHandler.onMessage(new Message("any", "reply-1", sampleDataDtoJson.getBytes()));
+        otherHandler.getValue().onMessage(new Message("any", "reply-2", sampleDataDtoJson.getBytes()));
+
+        verify(cn).publish(eq("reply-1"), any(byte[].class));
+        verify(other).publish(eq("reply-2"), any(byte[].class));
+
+        router.close();
+    }
+
+    @Test
+    public void coalescedGroupRepliesOnItsSubscriptionConnection() throws IOException, TimeoutException {
+        Connection other = mock(Connection.class);
+
+        Router router = Router.builder().coalesceSubscriptions(true).build(Arrays.asList(cn, other));
+        router.register(OrdersResource.class);
+
+        verify(cn).subscribe(eq("orders.>"), isNull(String.class), isA(MessageHandler.class));
+        currentHandler.onMessage(new Message("orders.created", "reply-1", sampleDataDtoJson.getBytes()));
+        currentHandler.onMessage(new Message("orders.shipped", "reply-2", sampleDataDtoJson.getBytes()));
+
+        verify(cn).publish(eq("reply-1"), any(byte[].class));
+        verify(cn).publish(eq("reply-2"), any(byte[].class));
+        verifyZeroInteractions(other);
+
+        router.close();
+    }
+
+}
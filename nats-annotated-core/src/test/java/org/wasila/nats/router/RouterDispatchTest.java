@@ -0,0 +1,109 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import org.junit.Test;
+import org.wasila.nats.annotation.DispatchMode;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNot.not;
+
+public class RouterDispatchTest extends TestBase {
+
+    private final CountDownLatch handled = new CountDownLatch(1);
+
+    private volatile Thread handlerThread;
+
+    public class TestResource {
+        @Subscribe
+        @Subject("test-subject")
+        public void handle() {
+            handlerThread = Thread.currentThread();
+            handled.countDown();
+        }
+    }
+
+    public class InlineTestResource {
+        @Subscribe(dispatch = DispatchMode.INLINE)
+        @Subject("test-subject")
+        public void handle() {
+            handlerThread = Thread.currentThread();
+            handled.countDown();
+        }
+    }
+
+    @Test
+    public void inlineDispatchRunsOnDeliveryThread() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new TestResource());
+
+        currentHandler.onMessage(msg);
+
+        router.close();
+
+        assertThat(handlerThread, equalTo(Thread.currentThread()));
+    }
+
+    @Test
+    public void workerPoolDispatchRunsOnWorkerThread() throws IOException, TimeoutException, InterruptedException {
+        Router router = Router.builder().dispatchMode(DispatchMode.WORKER_POOL).workerThreads(2).build(cn);
+        router.register(new TestResource());
+
+        currentHandler.onMessage(msg);
+
+        assertThat(handled.await(5, TimeUnit.SECONDS), is(true));
+        router.close();
+
+        assertThat(handlerThread, not(equalTo(Thread.currentThread())));
+        assertThat(handlerThread.getName().startsWith("nats-router-worker"), is(true));
+    }
+
+    @Test
+    public void subscriptionPoolDispatchRunsOnDedicatedThread() throws IOException, TimeoutException, InterruptedException {
+        Router router = Router.builder().dispatchMode(DispatchMode.SUBSCRIPTION_POOL).build(cn);
+        router.register(new TestResource());
+
+        currentHandler.onMessage(msg);
+
+        assertThat(handled.await(5, TimeUnit.SECONDS), is(true));
+        router.close();
+
+        assertThat(handlerThread.getName().startsWith("nats-router-test-subject"), is(true));
+    }
+
+    @Test
+    public void handlerAnnotationOverridesRouterDefault() throws IOException, TimeoutException {
+        Router router = Router.builder().dispatchMode(DispatchMode.WORKER_POOL).build(cn);
+        router.register(new InlineTestResource());
+
+        currentHandler.onMessage(msg);
+
+        router.close();
+
+        assertThat(handlerThread, equalTo(Thread.currentThread()));
+    }
+
+}
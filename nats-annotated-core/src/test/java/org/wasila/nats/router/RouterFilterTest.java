@@ -0,0 +1,109 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.Message;
+import org.junit.Test;
+import org.wasila.nats.annotation.Filter;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.SubjectParam;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class RouterFilterTest extends TestBase {
+
+    private final List<String> received = new ArrayList<>();
+
+    public static class OrderDto {
+        public String id;
+        public Customer customer;
+    }
+
+    public static class Customer {
+        public String tier;
+    }
+
+    public class FilteredResource {
+        @Subscribe
+        @Subject("orders.{region}")
+        @Filter(subjectParam = "region", value = {"eu", "us"})
+        @Filter(pointer = "/customer/tier", value = "gold")
+        public void handle(@SubjectParam("region") String region, OrderDto order) {
+            received.add(region + ":" + order.id);
+        }
+    }
+
+    public class UnknownParamResource {
+        @Subscribe
+        @Subject("orders.{region}")
+        @Filter(subjectParam = "country", value = "pl")
+        public void handle(OrderDto order) {
+        }
+    }
+
+    @Test
+    public void dropsMessagesNotMatchingFilters() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new FilteredResource());
+
+        deliver("orders.eu", "{\"id\":\"1\",\"customer\":{\"tier\":\"gold\"}}");
+        deliver("orders.asia", "{\"id\":\"2\",\"customer\":{\"tier\":\"gold\"}}");
+        deliver("orders.us", "{\"id\":\"3\",\"customer\":{\"tier\":\"silver\"}}");
+        deliver("orders.us", "{\"id\":\"4\"}");
+        deliver("orders.us", "{\"customer\":{\"tier\":\"gold\"},\"id\":\"5\"}");
+        deliver("orders.eu", "{\"id\":\"6\",\"customer\":{\"tier\":\"gold\"");
+
+        router.close();
+
+        assertThat(received.toString(), equalTo("[eu:1, us:5]"));
+    }
+
+    @Test
+    public void filtersOnSubjectParamsWithoutSubjectCache() throws IOException, TimeoutException {
+        Router router = Router.builder().subjectCacheSize(0).build(cn);
+        router.register(new FilteredResource());
+
+        deliver("orders.eu", "{\"id\":\"1\",\"customer\":{\"tier\":\"gold\"}}");
+        deliver("orders.asia", "{\"id\":\"2\",\"customer\":{\"tier\":\"gold\"}}");
+
+        router.close();
+
+        assertThat(received.toString(), equalTo("[eu:1]"));
+    }
+
+    @Test(expected = RouterConfigurationException.class)
+    public void rejectsFilterOnUnknownSubjectParam() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        try {
+            router.register(new UnknownParamResource());
+        } finally {
+            router.close();
+        }
+    }
+
+    private void deliver(String subject, String payload) {
+        currentHandler.onMessage(new Message(subject, null, payload.getBytes()));
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import org.junit.Test;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.SubjectParam;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.mockito.Mockito.when;
+
+public class RouterInvocationPlanTest extends TestBase {
+
+    private static final String RESPONSE_HANDLER_ID = "TestResource::handle";
+
+    public class TestResource {
+        @Subscribe
+        @Subject("test-subject.{id}")
+        public void handle(DataDto dto, @SubjectParam("id") String id) {
+            addResponseParamsOnly(RESPONSE_HANDLER_ID, dto.data, id);
+        }
+    }
+
+    @Test
+    public void planIsReusedForSubsequentMessages() throws IOException, TimeoutException {
+        Router router = prepareRouter(TestResource.class);
+
+        when(msg.getSubject()).thenReturn("test-subject.first");
+        when(msg.getData()).thenReturn("{\"data\":\"one\"}".getBytes());
+        currentHandler.onMessage(msg);
+
+        when(msg.getSubject()).thenReturn("test-subject.second");
+        when(msg.getData()).thenReturn("{\"data\":\"two\"}".getBytes());
+        currentHandler.onMessage(msg);
+
+        router.close();
+
+        validateResponse2(RESPONSE_HANDLER_ID, 2, "two", "second");
+    }
+
+    public class FailingResource {
+        @Subscribe
+        @Subject("test-subject")
+        public void handle() {
+            addResponseParamsOnly(RESPONSE_HANDLER_ID);
+            throw new IllegalStateException("handler failure");
+        }
+    }
+
+    @Test
+    public void handlerExceptionDoesNotEscapeToConnection() throws IOException, TimeoutException {
+        Router router = prepareRouter(FailingResource.class);
+
+        currentHandler.onMessage(msg);
+        currentHandler.onMessage(msg);
+
+        router.close();
+
+        validateResponse2(RESPONSE_HANDLER_ID, 2);
+    }
+
+    public static class StaticResource {
+        static int invocations;
+
+        @Subscribe
+        @Subject("test-subject")
+        public static void handle() {
+            invocations++;
+        }
+    }
+
+    @Test
+    public void staticHandlerIsInvoked() throws IOException, TimeoutException {
+        StaticResource.invocations = 0;
+        Router router = new Router(cn);
+        router.register(new StaticResource());
+
+        currentHandler.onMessage(msg);
+
+        router.close();
+
+        assertThat(StaticResource.invocations, equalTo(1));
+    }
+
+}
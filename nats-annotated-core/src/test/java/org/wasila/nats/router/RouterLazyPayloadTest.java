@@ -0,0 +1,122 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.Message;
+import org.junit.Test;
+import org.wasila.nats.annotation.OrderingKey;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.SubjectParam;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class RouterLazyPayloadTest extends TestBase {
+
+    private volatile Lazy<DataDto> lastLazy;
+    private volatile String lastId;
+    private volatile byte[] lastBytes;
+    private volatile ByteBuffer lastBuffer;
+
+    public class LazyResource {
+        @Subscribe
+        @Subject("test.{id}")
+        public void handle(@SubjectParam("id") String id, Lazy<DataDto> payload) {
+            lastId = id;
+            lastLazy = payload;
+        }
+    }
+
+    public class RawResource {
+        @Subscribe
+        @Subject("test-subject")
+        public void handle(byte[] bytes, ByteBuffer buffer) {
+            lastBytes = bytes;
+            lastBuffer = buffer;
+        }
+    }
+
+    public class LazyOrderingKeyResource {
+        @Subscribe
+        @Subject("test-subject")
+        public void handle(@OrderingKey Lazy<DataDto> payload) {
+        }
+    }
+
+    @Test
+    public void decodesLazyPayloadOnlyWhenAccessed() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new LazyResource());
+
+        currentHandler.onMessage(new Message("test.42", null, "not json at all".getBytes()));
+        assertThat(lastId, equalTo("42"));
+        assertThat(lastLazy.isDecoded(), is(false));
+
+        currentHandler.onMessage(new Message("test.43", null, sampleDataDtoJson.getBytes()));
+        assertThat(lastLazy.get().data, equalTo("value"));
+        assertThat(lastLazy.isDecoded(), is(true));
+
+        router.close();
+    }
+
+    @Test
+    public void passesRawPayload() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new RawResource());
+
+        currentHandler.onMessage(new Message("test-subject", null, sampleDataDtoJson.getBytes()));
+
+        assertThat(new String(lastBytes), equalTo(sampleDataDtoJson));
+        byte[] buffered = new byte[lastBuffer.remaining()];
+        lastBuffer.get(buffered);
+        assertThat(new String(buffered), equalTo(sampleDataDtoJson));
+        assertThat(lastBuffer.isReadOnly(), is(true));
+
+        router.close();
+    }
+
+    @Test
+    public void stripsCodecTagFromRawPayload() throws IOException, TimeoutException {
+        Router router = Router.builder().negotiateCodecs(true).build(cn);
+        router.register(new RawResource());
+
+        byte[] tagged = ("\u0001" + sampleDataDtoJson).getBytes();
+        currentHandler.onMessage(new Message("test-subject", null, tagged));
+
+        assertThat(new String(lastBytes), equalTo(sampleDataDtoJson));
+        assertThat(lastBuffer.remaining(), equalTo(sampleDataDtoJson.length()));
+
+        router.close();
+    }
+
+    @Test(expected = RouterConfigurationException.class)
+    public void rejectsLazyOrderingKey() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        try {
+            router.register(new LazyOrderingKeyResource());
+        } finally {
+            router.close();
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.Message;
+import org.junit.Test;
+import org.wasila.nats.annotation.DispatchMode;
+import org.wasila.nats.annotation.OrderingKey;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.SubjectParam;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNot.not;
+
+public class RouterPartitionedDispatchTest extends TestBase {
+
+    private static final int MESSAGES_PER_KEY = 200;
+
+    private final Map<String, List<String>> received = Collections.synchronizedMap(new HashMap<>());
+
+    private CountDownLatch handled;
+
+    public static class AccountDto {
+        public String account;
+        public String sequence;
+    }
+
+    public class SubjectKeyedResource {
+        @Subscribe(dispatch = DispatchMode.PARTITIONED)
+        @Subject("ledger.{account}")
+        public void handle(@OrderingKey @SubjectParam("account") String account, DataDto dto) {
+            received.computeIfAbsent(account, a -> Collections.synchronizedList(new ArrayList<>())).add(dto.data);
+            handled.countDown();
+        }
+    }
+
+    public class PayloadKeyedResource {
+        @Subscribe(dispatch = DispatchMode.PARTITIONED)
+        @Subject("ledger")
+        public void handle(@OrderingKey("account") AccountDto dto) {
+            received.computeIfAbsent(dto.account, a -> Collections.synchronizedList(new ArrayList<>())).add(dto.sequence);
+            handled.countDown();
+        }
+    }
+
+    public static class ThreadRecordingDto {
+        private static volatile String decodedOn;
+
+        public void setData(String data) {
+            decodedOn = Thread.currentThread().getName();
+        }
+    }
+
+    public class SubjectKeyedDecodingResource {
+        @Subscribe(dispatch = DispatchMode.PARTITIONED)
+        @Subject("ledger.{account}")
+        public void handle(@OrderingKey @SubjectParam("account") String account, ThreadRecordingDto dto) {
+            handled.countDown();
+        }
+    }
+
+    public class NotKeyedResource {
+        @Subscribe(dispatch = DispatchMode.PARTITIONED)
+        @Subject("ledger")
+        public void handle(DataDto dto) {
+        }
+    }
+
+    @Test
+    public void preservesOrderWithinSubjectParamKey() throws IOException, TimeoutException, InterruptedException {
+        handled = new CountDownLatch(2 * MESSAGES_PER_KEY);
+        Router router = Router.builder().partitions(4).build(cn);
+        router.register(new SubjectKeyedResource());
+
+        for (int i = 0; i < MESSAGES_PER_KEY; i++) {
+            for (String account : new String[] {"a", "b"}) {
+                currentHandler.onMessage(new Message("ledger." + account, null,
+                        ("{\"data\":\"" + i + "\"}").getBytes()));
+            }
+        }
+
+        assertThat(handled.await(5, TimeUnit.SECONDS), is(true));
+        router.close();
+
+        assertThat(received.get("a"), equalTo(sequence()));
+        assertThat(received.get("b"), equalTo(sequence()));
+    }
+
+    @Test
+    public void preservesOrderWithinPayloadFieldKey() throws IOException, TimeoutException, InterruptedException {
+        handled = new CountDownLatch(2 * MESSAGES_PER_KEY);
+        Router router = Router.builder().partitions(4).build(cn);
+        router.register(new PayloadKeyedResource());
+
+        for (int i = 0; i < MESSAGES_PER_KEY; i++) {
+            for (String account : new String[] {"a", "b"}) {
+                currentHandler.onMessage(new Message("ledger", null,
+                        ("{\"account\":\"" + account + "\",\"sequence\":\"" + i + "\"}").getBytes()));
+            }
+        }
+
+        assertThat(handled.await(5, TimeUnit.SECONDS), is(true));
+        router.close();
+
+        assertThat(received.get("a"), equalTo(sequence()));
+        assertThat(received.get("b"), equalTo(sequence()));
+    }
+
+    @Test
+    public void decodesPayloadOnLaneWhenKeyIsSubjectParam() throws IOException, TimeoutException, InterruptedException {
+        handled = new CountDownLatch(1);
+        Router router = Router.builder().partitions(4).build(cn);
+        router.register(new SubjectKeyedDecodingResource());
+
+        currentHandler.onMessage(new Message("ledger.a", null, "{\"data\":\"0\"}".getBytes()));
+
+        assertThat(handled.await(5, TimeUnit.SECONDS), is(true));
+        router.close();
+
+        assertThat(ThreadRecordingDto.decodedOn, not(equalTo(Thread.currentThread().getName())));
+    }
+
+    @Test(expected = RouterConfigurationException.class)
+    public void partitionedDispatchRequiresOrderingKey() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(new NotKeyedResource());
+    }
+
+    private static List<String> sequence() {
+        List<String> sequence = new ArrayList<>();
+        for (int i = 0; i < MESSAGES_PER_KEY; i++) {
+            sequence.add(String.valueOf(i));
+        }
+        return sequence;
+    }
+
+}
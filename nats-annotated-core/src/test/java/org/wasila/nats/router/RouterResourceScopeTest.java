@@ -0,0 +1,184 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.wasila.nats.annotation.DispatchMode;
+import org.wasila.nats.annotation.Reset;
+import org.wasila.nats.annotation.ResourceScope;
+import org.wasila.nats.annotation.Scope;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
+
+public class RouterResourceScopeTest extends TestBase {
+
+    private static List<Object> resourceInstances;
+    private static int resets;
+
+    public static class PerMessageResource {
+        @Subscribe
+        @Subject("test-subject")
+        public void handle() {
+            resourceInstances.add(this);
+        }
+    }
+
+    @Scope(ResourceScope.SINGLETON)
+    public static class SingletonResource extends PerMessageResource {
+    }
+
+    @Scope(ResourceScope.THREAD)
+    public static class ThreadResource extends PerMessageResource {
+    }
+
+    @Scope(value = ResourceScope.POOLED, poolSize = 2)
+    public static class PooledResource {
+        private int handled;
+
+        @Subscribe
+        @Subject("test-subject")
+        public void handle() {
+            handled++;
+            resourceInstances.add(this);
+        }
+
+        @Reset
+        void reset() {
+            assertThat(handled, equalTo(1));
+            handled = 0;
+            resets++;
+        }
+    }
+
+    @Scope(value = ResourceScope.POOLED, poolSize = 1)
+    public static class SinglePooledResource {
+        static CompletableFuture<Void> pending;
+
+        @Subscribe
+        @Subject("test-subject")
+        public CompletableFuture<Void> handle() {
+            resourceInstances.add(this);
+            return pending;
+        }
+    }
+
+    @Before
+    public void init() {
+        resourceInstances = Collections.synchronizedList(new ArrayList<>());
+        resets = 0;
+    }
+
+    @Test
+    public void singletonScopeSharesOneInstance() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(SingletonResource.class);
+        currentHandler.onMessage(msg);
+        currentHandler.onMessage(msg);
+        router.close();
+
+        assertThat(resourceInstances.size(), equalTo(2));
+        assertThat(resourceInstances.get(0), sameInstance(resourceInstances.get(1)));
+    }
+
+    @Test
+    public void threadScopeKeepsOneInstancePerThread() throws Exception {
+        Router router = new Router(cn);
+        router.register(ThreadResource.class);
+        currentHandler.onMessage(msg);
+        currentHandler.onMessage(msg);
+        Thread other = new Thread(() -> currentHandler.onMessage(msg));
+        other.start();
+        other.join();
+        router.close();
+
+        assertThat(resourceInstances.size(), equalTo(3));
+        assertThat(resourceInstances.get(0), sameInstance(resourceInstances.get(1)));
+        assertThat(resourceInstances.get(2), not(sameInstance(resourceInstances.get(0))));
+    }
+
+    @Test
+    public void pooledScopeResetsAndReusesInstances() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(PooledResource.class);
+        currentHandler.onMessage(msg);
+        currentHandler.onMessage(msg);
+        currentHandler.onMessage(msg);
+        router.close();
+
+        assertThat(resets, equalTo(3));
+        assertThat(resourceInstances.size(), equalTo(3));
+        assertThat(resourceInstances.get(1), sameInstance(resourceInstances.get(0)));
+        assertThat(resourceInstances.get(2), sameInstance(resourceInstances.get(0)));
+    }
+
+    @Test
+    public void pooledScopeWaitsForReleasedInstanceAtPoolSize() throws Exception {
+        SinglePooledResource.pending = new CompletableFuture<>();
+        Router router = new Router(cn);
+        router.register(SinglePooledResource.class);
+        currentHandler.onMessage(msg);
+        Thread second = new Thread(() -> currentHandler.onMessage(msg));
+        second.start();
+        second.join(200);
+
+        assertThat(second.isAlive(), is(true));
+        assertThat(resourceInstances.size(), equalTo(1));
+
+        SinglePooledResource.pending.complete(null);
+        second.join(5000);
+        router.close();
+
+        assertThat(resourceInstances.size(), equalTo(2));
+        assertThat(resourceInstances.get(1), sameInstance(resourceInstances.get(0)));
+    }
+
+    @Test(expected = RouterConfigurationException.class)
+    public void rejectsThreadScopeWithVirtualThreadDispatch() throws IOException, TimeoutException {
+        Router router = Router.builder().dispatchMode(DispatchMode.VIRTUAL_THREAD).build(cn);
+        try {
+            router.register(ThreadResource.class);
+        } finally {
+            router.close();
+        }
+    }
+
+    @Test
+    public void registrationOptionOverridesDefaultScope() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        router.register(PerMessageResource.class, ResourceScope.SINGLETON);
+        currentHandler.onMessage(msg);
+        currentHandler.onMessage(msg);
+        router.close();
+
+        assertThat(resourceInstances.get(0), sameInstance(resourceInstances.get(1)));
+    }
+
+}
@@ -0,0 +1,121 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import io.nats.client.AsyncSubscription;
+import io.nats.client.MessageHandler;
+import org.junit.Test;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.router.base.TestBase;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.mockito.Mockito.*;
+
+public class RouterUnregisterTest extends TestBase {
+
+    public static class FirstResource {
+        @Subscribe
+        @Subject("first")
+        public void handle() {
+        }
+    }
+
+    public static class SecondResource {
+        @Subscribe
+        @Subject("second")
+        public void handle() {
+        }
+    }
+
+    @Test
+    public void unregistersOnlyTheGivenResource() throws IOException, TimeoutException {
+        AsyncSubscription first = mock(AsyncSubscription.class);
+        AsyncSubscription second = mock(AsyncSubscription.class);
+        when(first.isValid()).thenReturn(true);
+        when(second.isValid()).thenReturn(true);
+        when(cn.subscribe(eq("first"), any(), any())).thenReturn(first);
+        when(cn.subscribe(eq("second"), any(), any())).thenReturn(second);
+
+        Router router = new Router(cn);
+        FirstResource resource = new FirstResource();
+        router.register(resource);
+        router.register(SecondResource.class);
+
+        assertThat(router.unregister(new FirstResource()), equalTo(false));
+        assertThat(router.unregister(resource), equalTo(true));
+        verify(first).unsubscribe();
+        verify(second, never()).unsubscribe();
+        assertThat(router.getQueueDepths().keySet().toString(), equalTo("[second]"));
+
+        assertThat(router.unregister(SecondResource.class), equalTo(true));
+        verify(second).unsubscribe();
+        assertThat(router.getQueueDepths().isEmpty(), equalTo(true));
+
+        router.close();
+        verify(first, times(1)).unsubscribe();
+        verify(second, times(1)).unsubscribe();
+    }
+
+    @Test
+    public void reregistersAfterUnregister() throws IOException, TimeoutException {
+        Router router = new Router(cn);
+        FirstResource resource = new FirstResource();
+        router.register(resource);
+        router.unregister(resource);
+        router.register(resource);
+        router.close();
+
+        verify(cn, times(2)).subscribe(eq("first"), isNull(String.class), isA(MessageHandler.class));
+        verify(sub, times(2)).unsubscribe();
+    }
+
+    @Test
+    public void registersConcurrentlyWithMetricsAndClose() throws Exception {
+        final Router router = new Router(cn);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread registering = new Thread(() -> {
+            try {
+                for (int i = 0; i < 500; i++) {
+                    FirstResource resource = new FirstResource();
+                    router.register(resource);
+                    router.register(SecondResource.class);
+                    router.unregister(resource);
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        registering.start();
+        while (registering.isAlive()) {
+            router.getQueueDepths();
+            router.getDroppedCounts();
+        }
+        registering.join();
+        router.close();
+
+        assertThat(failure.get(), nullValue());
+        assertThat(router.getQueueDepths().isEmpty(), equalTo(true));
+        verify(sub, times(1000)).unsubscribe();
+    }
+
+}
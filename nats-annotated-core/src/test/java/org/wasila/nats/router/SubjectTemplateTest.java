@@ -0,0 +1,53 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class SubjectTemplateTest {
+
+    @Test
+    public void compileReplacesParamsWithWildcards() {
+        SubjectTemplate template = SubjectTemplate.compile("orders.{region}.items.{id}");
+
+        assertThat(template.getSubscriptionSubject(), equalTo("orders.*.items.*"));
+        assertThat(template.getParamIndex("region"), equalTo(1));
+        assertThat(template.getParamIndex("id"), equalTo(3));
+        assertThat(template.getParamIndex("missing"), equalTo(-1));
+    }
+
+    @Test
+    public void extractSlicesOnlyRequestedSegments() {
+        Object[] args = new Object[4];
+
+        SubjectTemplate.extract("first.second.third.last", new int[] {0, 2, 2, 3}, new int[] {3, 0, 2, 1}, args);
+
+        assertThat(args, equalTo(new Object[] {"third", "last", "third", "first"}));
+    }
+
+    @Test
+    public void extractLeavesOtherArgumentsUntouched() {
+        Object[] args = new Object[] {"body", null};
+
+        SubjectTemplate.extract("orders.eu", new int[] {1}, new int[] {1}, args);
+
+        assertThat(args, equalTo(new Object[] {"body", "eu"}));
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.router;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class SubjectTrieTest {
+
+    @Test
+    public void matchesLiteralWildcardAndParamSegments() {
+        SubjectTrie<String> trie = new SubjectTrie<>();
+        trie.insert("orders.created", "created");
+        trie.insert("orders.*.shipped", "shipped");
+        trie.insert("orders.{region}.cancelled", "cancelled");
+
+        assertThat(trie.match("orders.created"), equalTo(Collections.singletonList("created")));
+        assertThat(trie.match("orders.eu.shipped"), equalTo(Collections.singletonList("shipped")));
+        assertThat(trie.match("orders.us.cancelled"), equalTo(Collections.singletonList("cancelled")));
+        assertThat(trie.match("orders.eu"), equalTo(Collections.<String>emptyList()));
+        assertThat(trie.match("orders.eu.shipped.late"), equalTo(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void tailWildcardMatchesOneOrMoreSegments() {
+        SubjectTrie<String> trie = new SubjectTrie<>();
+        trie.insert("orders.>", "all");
+
+        assertThat(trie.match("orders.eu"), equalTo(Collections.singletonList("all")));
+        assertThat(trie.match("orders.eu.shipped"), equalTo(Collections.singletonList("all")));
+        assertThat(trie.match("orders"), equalTo(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void returnsEveryOverlappingPattern() {
+        SubjectTrie<String> trie = new SubjectTrie<>();
+        trie.insert("orders.eu", "literal");
+        trie.insert("orders.*", "wildcard");
+        trie.insert("orders.>", "tail");
+
+        List<String> matches = trie.match("orders.eu");
+
+        assertThat(matches.size(), equalTo(3));
+        assertThat(matches.containsAll(Arrays.asList("literal", "wildcard", "tail")), equalTo(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTailWildcardInTheMiddle() {
+        new SubjectTrie<String>().insert("orders.>.shipped", "invalid");
+    }
+
+}
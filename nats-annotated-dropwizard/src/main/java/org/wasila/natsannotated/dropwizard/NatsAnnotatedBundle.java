@@ -22,10 +22,14 @@ import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import io.nats.client.ConnectionFactory;
+import org.wasila.nats.Connections;
 import org.wasila.nats.router.Router;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public abstract class NatsAnnotatedBundle<T extends Configuration> implements Managed, ConfiguredBundle<T> {
 
@@ -58,9 +62,15 @@ public abstract class NatsAnnotatedBundle<T extends Configuration> implements Ma
         resources.add(resourceClass);
     }
 
+    // runs before the application starts serving, so the connections, plans and subject caches are ready by then
     @Override
     public void start() throws Exception {
-        this.router = new Router(getUrl());
+        Set<String> urls = new LinkedHashSet<>();
+        urls.add(getUrl());
+        urls.addAll(config.getWarmUpUrls());
+        Connections.warmUp(urls, config.getConnections(), config.getWarmUpTimeoutSeconds(), TimeUnit.SECONDS);
+
+        this.router = Router.builder().connections(config.getConnections()).build(getUrl());
         for (Object resource : resources) {
             if (resource instanceof Class) {
                 router.register((Class<?>)resource);
@@ -68,6 +78,7 @@ public abstract class NatsAnnotatedBundle<T extends Configuration> implements Ma
                 router.register(resource);
             }
         }
+        router.warmUp(config.getWarmUpSubjects().toArray(new String[0]));
     }
 
     @Override
@@ -20,6 +20,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
 
 public class NatsConfiguration {
 
@@ -30,6 +32,18 @@ public class NatsConfiguration {
     @Max(65535)
     private int port;
 
+    @Min(1)
+    private int connections = 1;
+
+    @NotNull
+    private List<String> warmUpUrls = new ArrayList<>();
+
+    @NotNull
+    private List<String> warmUpSubjects = new ArrayList<>();
+
+    @Min(1)
+    private long warmUpTimeoutSeconds = 30;
+
     @JsonProperty("host")
     public String getHost() {
         return host;
@@ -49,4 +63,44 @@ public class NatsConfiguration {
     public void setPort(int port) {
         this.port = port;
     }
+
+    @JsonProperty("connections")
+    public int getConnections() {
+        return connections;
+    }
+
+    @JsonProperty("connections")
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    @JsonProperty("warmUpUrls")
+    public List<String> getWarmUpUrls() {
+        return warmUpUrls;
+    }
+
+    @JsonProperty("warmUpUrls")
+    public void setWarmUpUrls(List<String> warmUpUrls) {
+        this.warmUpUrls = warmUpUrls;
+    }
+
+    @JsonProperty("warmUpSubjects")
+    public List<String> getWarmUpSubjects() {
+        return warmUpSubjects;
+    }
+
+    @JsonProperty("warmUpSubjects")
+    public void setWarmUpSubjects(List<String> warmUpSubjects) {
+        this.warmUpSubjects = warmUpSubjects;
+    }
+
+    @JsonProperty("warmUpTimeoutSeconds")
+    public long getWarmUpTimeoutSeconds() {
+        return warmUpTimeoutSeconds;
+    }
+
+    @JsonProperty("warmUpTimeoutSeconds")
+    public void setWarmUpTimeoutSeconds(long warmUpTimeoutSeconds) {
+        this.warmUpTimeoutSeconds = warmUpTimeoutSeconds;
+    }
 }
@@ -0,0 +1,331 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.processor;
+
+import org.wasila.nats.annotation.Publish;
+import org.wasila.nats.annotation.Subject;
+import org.wasila.nats.annotation.Subscribe;
+import org.wasila.nats.publisher.PublisherBinding;
+import org.wasila.nats.router.GeneratedRouter;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class NatsAnnotationProcessor extends AbstractProcessor {
+
+    private static final String[] GENERATED_ANNOTATIONS = {
+            "javax.annotation.processing.Generated", "javax.annotation.Generated"};
+
+    private final Set<String> generated = new HashSet<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<>(Arrays.asList(Publish.class.getName(), Subject.class.getName(), Subscribe.class.getName()));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<TypeElement> publishers = new LinkedHashSet<>();
+        Set<TypeElement> routers = new LinkedHashSet<>();
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(Publish.class)) {
+            addIfKind(publishers, element.getEnclosingElement(), ElementKind.INTERFACE);
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(Subject.class)) {
+            addIfKind(publishers, element.getKind() == ElementKind.METHOD ? element.getEnclosingElement() : element,
+                    ElementKind.INTERFACE);
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(Subscribe.class)) {
+            addIfKind(routers, element.getEnclosingElement(), ElementKind.CLASS);
+        }
+
+        for (TypeElement type : publishers) {
+            if (generated.add(type.getQualifiedName() + PublisherBinding.GENERATED_SUFFIX)) {
+                generatePublisher(type);
+            }
+        }
+        for (TypeElement type : routers) {
+            if (generated.add(type.getQualifiedName() + GeneratedRouter.GENERATED_SUFFIX)) {
+                generateRouter(type);
+            }
+        }
+        return false;
+    }
+
+    private static void addIfKind(Set<TypeElement> types, Element element, ElementKind kind) {
+        if (element.getKind() == kind) {
+            types.add((TypeElement) element);
+        }
+    }
+
+    private void generatePublisher(TypeElement type) {
+        if (!isAccessible(type) || !type.getTypeParameters().isEmpty()) {
+            skip(type, "publisher interface is private or generic");
+            return;
+        }
+        List<ExecutableElement> methods = new ArrayList<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (method.getModifiers().contains(Modifier.ABSTRACT)) {
+                if (!method.getTypeParameters().isEmpty()) {
+                    skip(type, "generic method " + method.getSimpleName() + " is not supported");
+                    return;
+                }
+                methods.add(method);
+            }
+        }
+
+        String className = generatedName(type, PublisherBinding.GENERATED_SUFFIX);
+        StringBuilder src = header(type);
+        src.append("@SuppressWarnings(\"unchecked\")\n");
+        src.append("public final class ").append(className).append(" implements ")
+                .append(type.getQualifiedName()).append(" {\n\n");
+        for (int i = 0; i < methods.size(); i++) {
+            src.append("    private final ").append(PublisherBinding.Call.class.getCanonicalName())
+                    .append(" call").append(i).append(";\n");
+        }
+        src.append("\n    public ").append(className).append("(")
+                .append(PublisherBinding.class.getName()).append(" binding) {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            ExecutableElement method = methods.get(i);
+            src.append("        this.call").append(i).append(" = binding.call(\"").append(method.getSimpleName()).append("\"");
+            for (VariableElement param : method.getParameters()) {
+                src.append(", ").append(rawName(param.asType())).append(".class");
+            }
+            src.append(");\n");
+        }
+        src.append("    }\n");
+
+        for (int i = 0; i < methods.size(); i++) {
+            ExecutableElement method = methods.get(i);
+            TypeMirror returnType = method.getReturnType();
+            src.append("\n    @Override\n    public ").append(returnType).append(" ").append(method.getSimpleName()).append("(");
+            List<? extends VariableElement> params = method.getParameters();
+            for (int p = 0; p < params.size(); p++) {
+                src.append(p > 0 ? ", " : "").append(params.get(p).asType()).append(" arg").append(p);
+            }
+            src.append(")");
+            List<? extends TypeMirror> thrown = method.getThrownTypes();
+            for (int t = 0; t < thrown.size(); t++) {
+                src.append(t > 0 ? ", " : " throws ").append(thrown.get(t));
+            }
+            src.append(" {\n        ");
+            if (!thrown.isEmpty()) {
+                src.append("try {\n            ");
+            }
+            if (returnType.getKind() != TypeKind.VOID) {
+                src.append("return (").append(boxedName(returnType)).append(") ");
+            }
+            src.append("call").append(i).append(thrown.isEmpty() ? ".invoke(" : ".invokeChecked(");
+            for (int p = 0; p < params.size(); p++) {
+                src.append(p > 0 ? ", " : "").append("arg").append(p);
+            }
+            src.append(");\n");
+            if (!thrown.isEmpty()) {
+                // same contract as the proxy: declared checked exceptions pass through, the rest are wrapped
+                src.append("        } catch (java.io.IOException | java.util.concurrent.TimeoutException e) {\n")
+                        .append("            Throwable cause = e;\n");
+                for (TypeMirror thrownType : thrown) {
+                    src.append("            if (cause instanceof ").append(rawName(thrownType)).append(") {\n")
+                            .append("                throw (").append(rawName(thrownType)).append(") cause;\n")
+                            .append("            }\n");
+                }
+                src.append("            throw new java.lang.reflect.UndeclaredThrowableException(e);\n")
+                        .append("        }\n");
+            }
+            src.append("    }\n");
+        }
+        src.append("\n}\n");
+        write(type, className, src);
+    }
+
+    private void generateRouter(TypeElement type) {
+        if (!isAccessible(type) || type.getModifiers().contains(Modifier.ABSTRACT)) {
+            skip(type, "resource class is private or abstract");
+            return;
+        }
+        String packageName = packageName(type);
+        List<ExecutableElement> handlers = new ArrayList<>();
+        TypeElement current = type;
+        while (current != null && !current.getQualifiedName().contentEquals(Object.class.getName())) {
+            boolean samePackage = packageName(current).equals(packageName);
+            for (ExecutableElement method : ElementFilter.methodsIn(current.getEnclosedElements())) {
+                if (method.getAnnotation(Subscribe.class) == null) {
+                    continue;
+                }
+                Set<Modifier> modifiers = method.getModifiers();
+                boolean visible = samePackage ? !modifiers.contains(Modifier.PRIVATE)
+                        : modifiers.contains(Modifier.PUBLIC) && current.getModifiers().contains(Modifier.PUBLIC);
+                if (!visible || !isAccessible(current)) {
+                    skip(type, "handler " + method.getSimpleName() + " is not accessible from generated code");
+                    return;
+                }
+                handlers.add(method);
+            }
+            TypeMirror superclass = current.getSuperclass();
+            current = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+
+        String className = generatedName(type, GeneratedRouter.GENERATED_SUFFIX);
+        String targetName = rawName(type.asType());
+        StringBuilder src = header(type);
+        src.append("public final class ").append(className).append(" implements ")
+                .append(GeneratedRouter.class.getName()).append(" {\n\n");
+        src.append("    private static final java.lang.reflect.Method[] HANDLERS;\n\n");
+        src.append("    static {\n        try {\n            HANDLERS = new java.lang.reflect.Method[] {\n");
+        for (ExecutableElement handler : handlers) {
+            src.append("                    ").append(rawName(handler.getEnclosingElement().asType()))
+                    .append(".class.getDeclaredMethod(\"").append(handler.getSimpleName()).append("\"");
+            for (VariableElement param : handler.getParameters()) {
+                src.append(", ").append(rawName(param.asType())).append(".class");
+            }
+            src.append("),\n");
+        }
+        src.append("            };\n        } catch (NoSuchMethodException e) {\n")
+                .append("            throw new IllegalStateException(e);\n        }\n    }\n\n");
+        src.append("    @Override\n    public java.lang.reflect.Method[] handlers() {\n")
+                .append("        return HANDLERS.clone();\n    }\n\n");
+        src.append("    @Override\n    public Object invoke(Object target, int handler, Object[] args) throws Throwable {\n")
+                .append("        switch (handler) {\n");
+        for (int i = 0; i < handlers.size(); i++) {
+            ExecutableElement handler = handlers.get(i);
+            boolean returnsValue = handler.getReturnType().getKind() != TypeKind.VOID;
+            src.append("            case ").append(i).append(":\n                ");
+            if (returnsValue) {
+                src.append("return ");
+            }
+            if (handler.getModifiers().contains(Modifier.STATIC)) {
+                src.append(rawName(handler.getEnclosingElement().asType()));
+            } else {
+                src.append("((").append(targetName).append(") target)");
+            }
+            src.append(".").append(handler.getSimpleName()).append("(");
+            List<? extends VariableElement> params = handler.getParameters();
+            for (int p = 0; p < params.size(); p++) {
+                src.append(p > 0 ? ", " : "").append("(").append(rawName(params.get(p).asType()))
+                        .append(") args[").append(p).append("]");
+            }
+            src.append(");\n");
+            if (!returnsValue) {
+                src.append("                return null;\n");
+            }
+        }
+        src.append("            default:\n")
+                .append("                throw new IllegalArgumentException(\"Unknown handler \" + handler);\n")
+                .append("        }\n    }\n\n}\n");
+        write(type, className, src);
+    }
+
+    private StringBuilder header(TypeElement type) {
+        StringBuilder src = new StringBuilder();
+        String packageName = packageName(type);
+        if (!packageName.isEmpty()) {
+            src.append("package ").append(packageName).append(";\n\n");
+        }
+        String generatedAnnotation = generatedAnnotation();
+        if (generatedAnnotation != null) {
+            src.append("@").append(generatedAnnotation).append("(\"").append(getClass().getName()).append("\")\n");
+        }
+        return src;
+    }
+
+    // javax.annotation.Generated is gone from the default module graph since JDK 11; its replacement is part of
+    // the Java SE API from 9 on, but javac may report it ambiguous across modules and fail the lookup
+    private String generatedAnnotation() {
+        if (processingEnv.getSourceVersion().compareTo(SourceVersion.RELEASE_8) > 0) {
+            return GENERATED_ANNOTATIONS[0];
+        }
+        for (String name : GENERATED_ANNOTATIONS) {
+            if (processingEnv.getElementUtils().getTypeElement(name) != null) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private void write(TypeElement type, String className, StringBuilder src) {
+        String packageName = packageName(type);
+        String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+        try (Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter()) {
+            writer.write(src.toString());
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not generate " + qualifiedName + ": " + e.getMessage(), type);
+        }
+    }
+
+    private void skip(TypeElement type, String reason) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                "Skipping code generation for " + type.getQualifiedName() + ": " + reason, type);
+    }
+
+    private String generatedName(TypeElement type, String suffix) {
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String packageName = packageName(type);
+        return (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + suffix;
+    }
+
+    private String packageName(TypeElement type) {
+        return processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    }
+
+    private String rawName(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private String boxedName(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass(processingEnv.getTypeUtils().getPrimitiveType(type.getKind()))
+                    .getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    private static boolean isAccessible(TypeElement type) {
+        for (Element element = type; element instanceof TypeElement; element = element.getEnclosingElement()) {
+            if (element.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,176 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.processor;
+
+import io.nats.client.AsyncSubscription;
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.wasila.nats.publisher.Publisher;
+import org.wasila.nats.router.Router;
+
+import javax.lang.model.SourceVersion;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Mockito.*;
+
+public class NatsAnnotationProcessorTest {
+
+    private static final String PUBLISHER_SOURCE = "package sample;\n"
+            + "import org.wasila.nats.annotation.Publish;\n"
+            + "public interface Events {\n"
+            + "    @Publish(subject = \"events\")\n"
+            + "    void send(String event);\n"
+            + "    @Publish(subject = \"questions\", timeout = 50)\n"
+            + "    String ask(String question) throws java.util.concurrent.TimeoutException;\n"
+            + "}\n";
+
+    private static final String RESOURCE_SOURCE = "package sample;\n"
+            + "import org.wasila.nats.annotation.Subject;\n"
+            + "import org.wasila.nats.annotation.Subscribe;\n"
+            + "public class Resource {\n"
+            + "    public static String received;\n"
+            + "    @Subscribe\n"
+            + "    @Subject(\"events\")\n"
+            + "    public void handle(String event) {\n"
+            + "        received = event;\n"
+            + "    }\n"
+            + "}\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ClassLoader classLoader;
+
+    private Connection cn;
+
+    @Before
+    public void compileSamples() throws Exception {
+        File classes = compile(Collections.<String>emptyList());
+        classLoader = new URLClassLoader(new URL[] {classes.toURI().toURL()}, getClass().getClassLoader());
+        cn = mock(Connection.class);
+    }
+
+    private File compile(List<String> options) throws IOException {
+        File root = folder.newFolder();
+        File sources = new File(root, "src/sample");
+        File generated = new File(root, "generated");
+        File classes = new File(root, "classes");
+        assertThat(sources.mkdirs() && generated.mkdirs() && classes.mkdirs(), is(true));
+        Files.write(new File(sources, "Events.java").toPath(), PUBLISHER_SOURCE.getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(sources, "Resource.java").toPath(), RESOURCE_SOURCE.getBytes(StandardCharsets.UTF_8));
+
+        List<String> arguments = new ArrayList<>(options);
+        arguments.addAll(Arrays.asList("-classpath", System.getProperty("java.class.path")));
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+            fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singleton(classes));
+            fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singleton(generated));
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null, arguments, null,
+                    fileManager.getJavaFileObjects(new File(sources, "Events.java"), new File(sources, "Resource.java")));
+            task.setProcessors(Collections.singleton(new NatsAnnotationProcessor()));
+            assertThat(task.call(), is(true));
+        }
+        return classes;
+    }
+
+    @Test
+    public void publisherUsesGeneratedImplementation() throws Exception {
+        Class<?> events = classLoader.loadClass("sample.Events");
+
+        Object publisher = Publisher.builder().target(events, cn);
+
+        assertThat(Proxy.isProxyClass(publisher.getClass()), is(false));
+        assertThat(publisher.getClass().getName(), equalTo("sample.Events$$NatsPublisher"));
+
+        events.getMethod("send", String.class).invoke(publisher, "hello");
+
+        verify(cn).publish(eq("events"), isNull(String.class), aryEq("\"hello\"".getBytes()));
+    }
+
+    @Test
+    public void routerDispatchesThroughGeneratedInvoker() throws Exception {
+        Class<?> resource = classLoader.loadClass("sample.Resource");
+        assertThat(classLoader.loadClass("sample.Resource$$NatsRouter").getName(), equalTo("sample.Resource$$NatsRouter"));
+
+        when(cn.subscribe(anyString(), anyString(), any(MessageHandler.class))).thenReturn(mock(AsyncSubscription.class));
+        Router router = new Router(cn);
+        router.register(resource.newInstance());
+
+        ArgumentCaptor<MessageHandler> handler = ArgumentCaptor.forClass(MessageHandler.class);
+        verify(cn).subscribe(eq("events"), isNull(String.class), handler.capture());
+
+        handler.getValue().onMessage(new Message("events", null, "\"hello\"".getBytes()));
+        router.close();
+
+        assertThat(resource.getField("received").get(null), equalTo((Object) "hello"));
+    }
+
+    @Test
+    public void generatedPublisherRethrowsDeclaredCheckedExceptions() throws Exception {
+        Class<?> events = classLoader.loadClass("sample.Events");
+        Object publisher = Publisher.builder().target(events, cn);
+
+        try {
+            events.getMethod("ask", String.class).invoke(publisher, "anyone?");
+            fail("expected a timeout");
+        } catch (InvocationTargetException e) {
+            assertThat(e.getCause(), instanceOf(TimeoutException.class));
+        }
+    }
+
+    @Test
+    public void compilesSamplesAtJava9SourceLevel() throws Exception {
+        assumeTrue(SourceVersion.latestSupported().ordinal() > SourceVersion.RELEASE_8.ordinal());
+
+        File classes = compile(Arrays.asList("--release", "9"));
+
+        String source = new String(Files.readAllBytes(
+                new File(classes.getParentFile(), "generated/sample/Events$$NatsPublisher.java").toPath()),
+                StandardCharsets.UTF_8);
+        assertThat(source, containsString("@javax.annotation.processing.Generated("));
+    }
+
+}
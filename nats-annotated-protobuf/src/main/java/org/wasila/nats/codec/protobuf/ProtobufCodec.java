@@ -0,0 +1,53 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.codec.protobuf;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import org.wasila.nats.codec.Codec;
+import org.wasila.nats.codec.Decoder;
+import org.wasila.nats.codec.Encoder;
+
+import java.lang.reflect.Type;
+
+public class ProtobufCodec implements Codec {
+
+    public static final String NAME = "protobuf";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public Encoder encoder(Type type) {
+        return value -> ((MessageLite) value).toByteArray();
+    }
+
+    @Override
+    public Decoder decoder(Type type) {
+        if (!(type instanceof Class) || !MessageLite.class.isAssignableFrom((Class<?>) type)) {
+            throw new IllegalArgumentException("Protobuf codec can only decode generated message types, got " + type);
+        }
+        try {
+            final Parser<?> parser = (Parser<?>) ((Class<?>) type).getMethod("parser").invoke(null);
+            return parser::parseFrom;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("No parser found for " + type, e);
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+/**
+ * (C) Copyright 2016 Adam Wasila.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wasila.nats.codec.protobuf;
+
+import com.google.protobuf.StringValue;
+import org.junit.Test;
+import org.wasila.nats.codec.Codecs;
+
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+
+public class ProtobufCodecTest {
+
+    private final ProtobufCodec codec = new ProtobufCodec();
+
+    @Test
+    public void roundTripsGeneratedMessage() throws IOException {
+        StringValue value = StringValue.newBuilder().setValue("payload").build();
+
+        byte[] data = codec.encoder(StringValue.class).encode(value);
+
+        assertThat(codec.decoder(StringValue.class).decode(data), equalTo(value));
+    }
+
+    @Test
+    public void decodesPayloadAtOffset() throws IOException {
+        StringValue value = StringValue.newBuilder().setValue("payload").build();
+        byte[] encoded = value.toByteArray();
+        byte[] tagged = new byte[encoded.length + 1];
+        tagged[0] = Codecs.tagFor(ProtobufCodec.NAME);
+        System.arraycopy(encoded, 0, tagged, 1, encoded.length);
+
+        assertThat(codec.decoder(StringValue.class).decode(tagged, 1, encoded.length), equalTo(value));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTypesThatAreNotMessages() {
+        codec.decoder(String.class);
+    }
+
+    @Test
+    public void isFoundByNameOnClasspath() {
+        assertThat(Codecs.forName(ProtobufCodec.NAME), instanceOf(ProtobufCodec.class));
+    }
+
+}